@@ -0,0 +1,253 @@
+import java.time.Duration;
+
+/**
+ * 
+ * Bloom filter that forgets, for suppressing duplicates in an unbounded stream of keys. Keys go
+ * into the newer of two generations, each a BloomFilterRan; when the newer generation has taken
+ * windowKeys keys, or has been collecting for the window duration, the older one is dropped and
+ * an empty one takes the newer one's place. A key is looked up in both generations, so it appears
+ * for at least one window after it was last added and is forgotten within two.
+ * 
+ * Keys are hashed once by the filter's HashStrategy and the digest probes both generations. The
+ * generation dropped at a rotation is not cleared all at once: a few of its words are zeroed on
+ * every add, enough to finish by the time windowKeys more keys have arrived. When rotating on
+ * windowKeys that is exactly when it is needed again, so each add costs the same however large
+ * the filter is. When rotating on a window duration this holds only while at least expectedKeys
+ * keys arrive per window. Otherwise the call that rotates clears what is left of the spare, and
+ * the first call after two idle windows clears a whole generation. Memory is fixed at three
+ * generations. The false positive rate is about that of both generations together, at most twice
+ * the rate of one generation of windowKeys keys at bitsPerElement.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class AgingBloomFilter implements BloomFilter {
+	
+	private BloomFilterRan newer, older, spare;
+	private HashStrategy strategy;
+	private int windowKeys;
+	private long windowNanos, generationStart;
+	private long spareCleared, clearStride;
+	
+	/**
+	 * Creates a filter remembering at least the last windowKeys keys added, hashing keys with
+	 * Murmur3-128.
+	 * @param windowKeys
+	 * @param bitsPerElement
+	 */
+	public AgingBloomFilter(int windowKeys, int bitsPerElement){
+		this(windowKeys, bitsPerElement, HashStrategy.MURMUR3);
+	}
+	
+	/**
+	 * Creates a filter remembering at least the last windowKeys keys added.
+	 * @param windowKeys
+	 * @param bitsPerElement
+	 * @param strategy
+	 */
+	public AgingBloomFilter(int windowKeys, int bitsPerElement, HashStrategy strategy){
+		this(windowKeys, bitsPerElement, strategy, 0);
+	}
+	
+	/**
+	 * Creates a filter remembering keys added within at least the last window, hashing keys with
+	 * Murmur3-128. Each generation is sized for expectedKeys, the number of keys expected per window;
+	 * the false positive rate rises if more arrive.
+	 * @param window
+	 * @param expectedKeys
+	 * @param bitsPerElement
+	 */
+	public AgingBloomFilter(Duration window, int expectedKeys, int bitsPerElement){
+		this(window, expectedKeys, bitsPerElement, HashStrategy.MURMUR3);
+	}
+	
+	/**
+	 * Creates a filter remembering keys added within at least the last window. Each generation is
+	 * sized for expectedKeys, the number of keys expected per window.
+	 * @param window
+	 * @param expectedKeys
+	 * @param bitsPerElement
+	 * @param strategy
+	 */
+	public AgingBloomFilter(Duration window, int expectedKeys, int bitsPerElement, HashStrategy strategy){
+		this(expectedKeys, bitsPerElement, strategy, window.toNanos());
+		if(windowNanos <= 0) {
+			throw new IllegalArgumentException("window must be positive: " + window);
+		}
+	}
+	
+	private AgingBloomFilter(int windowKeys, int bitsPerElement, HashStrategy strategy, long windowNanos){
+		if(windowKeys <= 0 || strategy == null) {
+			throw new IllegalArgumentException("need windowKeys > 0 and a HashStrategy");
+		}
+		this.windowKeys = windowKeys;
+		this.strategy = strategy;
+		this.windowNanos = windowNanos;
+		newer = new BloomFilterRan(windowKeys, bitsPerElement, strategy);
+		older = new BloomFilterRan(windowKeys, bitsPerElement, strategy);
+		spare = new BloomFilterRan(windowKeys, bitsPerElement, strategy);
+		long words = spare.bits().wordCount();
+		spareCleared = words;
+		clearStride = (words + windowKeys - 1) / windowKeys;
+		generationStart = System.nanoTime();
+	}
+	
+	/**
+	 * Adds the string to the newer generation. This method should be case-insensitive.
+	 * @param s
+	 */
+	public void add(String s) {
+		if(s != null) {
+			addDigest(strategy.hash(s));
+		}
+	}
+	
+	/**
+	 * Returns true if s was added within the window; keys added before the last two windows are
+	 * forgotten. This method must also be case-insensitive.
+	 * @param s
+	 * @return
+	 */
+	public boolean appears(String s) {
+		return s != null && appearsDigest(strategy.hash(s));
+	}
+	
+	/**
+	 * Returns true if s was added within the window, then adds it, hashing s once. A stream
+	 * deduplicator passes on the keys for which this returns false. A key that is already in the
+	 * newer generation is not added again, so repeats do not use up the window.
+	 * @param s
+	 * @return
+	 */
+	public boolean checkAndAdd(String s) {
+		if(s == null) {
+			return false;
+		}
+		long digest = strategy.hash(s);
+		rotateIfDue();
+		if(newer.appearsDigest(digest)) {
+			return true;
+		}
+		boolean seen = older.appearsDigest(digest);
+		addDigest(digest);
+		return seen;
+	}
+	
+	public HashStrategy strategy() {
+		return strategy;
+	}
+	
+	/**
+	 * Adds a key digest to the newer generation and clears a stride of the spare one.
+	 * @param digest
+	 */
+	public void addDigest(long digest) {
+		rotateIfDue();
+		newer.addDigest(digest);
+		if(spareCleared < spare.bits().wordCount()) {
+			spareCleared = spare.clearWords(spareCleared, clearStride);
+		}
+	}
+	
+	/**
+	 * Returns true if a key digest appears in either generation.
+	 * @param digest
+	 * @return
+	 */
+	public boolean appearsDigest(long digest) {
+		rotateIfDue();
+		return newer.appearsDigest(digest) || older.appearsDigest(digest);
+	}
+	
+	/**
+	 * Starts a new generation once the newer one is full or its window has passed. After two
+	 * windows without keys both generations are dropped, which clears one of them in full.
+	 */
+	private void rotateIfDue() {
+		if(windowNanos == 0) {
+			if(newer.dataSize() >= windowKeys) {
+				rotate();
+			}
+			return;
+		}
+		long now = System.nanoTime();
+		long elapsed = now - generationStart;
+		if(elapsed >= windowNanos) {
+			rotate();
+			if(elapsed >= 2 * windowNanos) {
+				rotate();
+			}
+			generationStart = now;
+		}
+	}
+	
+	/**
+	 * Drops the older generation: the newer one becomes the older and the spare, finished clearing,
+	 * becomes the newer. The dropped generation is the next spare. Finishing the spare costs
+	 * nothing when enough keys were added since the last rotation and up to a whole generation
+	 * otherwise.
+	 */
+	private void rotate() {
+		spare.clearWords(spareCleared, spare.bits().wordCount() - spareCleared);
+		BloomFilterRan dropped = older;
+		older = newer;
+		newer = spare;
+		spare = dropped;
+		spareCleared = 0;
+	}
+	
+	/**
+	 * Returns the number of keys in the two generations, counting a key in both twice.
+	 * @return
+	 */
+	public int dataSize() {
+		return newer.dataSize() + older.dataSize();
+	}
+	
+	/**
+	 * Returns the size of the two generations that are looked up. The spare generation takes as
+	 * much memory again as one of them.
+	 * @return
+	 */
+	public long filterSize() {
+		return newer.filterSize() + older.filterSize();
+	}
+	
+	/**
+	 * Returns the number of hash functions of each generation.
+	 * @return
+	 */
+	public int numHashes() {
+		return newer.numHashes();
+	}
+	
+	public boolean countsBits() {
+		return true;
+	}
+	
+	/**
+	 * Returns the number of set bits in the two generations.
+	 * @return
+	 */
+	public long bitsSet() {
+		return newer.bitsSet() + older.bitsSet();
+	}
+	
+	/**
+	 * Returns the false positive rate expected of the two generations: a key appears if it appears
+	 * in either, 1 - (1 - p1)(1 - p2).
+	 * @return
+	 */
+	public double expectedFalsePositiveRate() {
+		return 1 - (1 - newer.expectedFalsePositiveRate()) * (1 - older.expectedFalsePositiveRate());
+	}
+	
+	/**
+	 * Estimates the false positive rate from the bits set in each generation, combined as for
+	 * expectedFalsePositiveRate.
+	 * @return
+	 */
+	public double estimateFalsePositiveRate() {
+		return 1 - (1 - newer.estimateFalsePositiveRate()) * (1 - older.estimateFalsePositiveRate());
+	}
+}
@@ -0,0 +1,340 @@
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ *
+ * Static filter for a key set that is known up front, such as the keys of DiffFile.txt: a binary
+ * fuse filter with 8-bit fingerprints (Graf and Lemire). Every key is mapped to three slots in
+ * consecutive segments of a byte array, and the array is solved so that the three slots of each
+ * key XOR to that key's fingerprint. A lookup reads exactly three bytes and a key that was not
+ * added matches with probability 1/256, about 0.4%, where a Bloom filter needs 12 bits per key for
+ * the same rate. The filter takes about 9 bits per key from a million keys up, 10 at ten thousand
+ * and 11 at a thousand. Small sets cost much more per key, since the array is padded to at least
+ * three segments: 15 bits per key at a hundred keys, 38 at ten and 96 for a single key.
+ *
+ * The filter is built once from all of its keys and cannot be added to. Up to about 1.9 billion
+ * keys are supported.
+ *
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class BinaryFuseFilter implements BloomFilter {
+
+	private static final int MAX_ITERATIONS = 100;
+	private static final int MAX_SEGMENT_LENGTH = 1 << 18;
+
+	private HashStrategy strategy;
+	private long seed;
+	private int dataSize, segmentLength, segmentLengthMask, segmentCountLength;
+	private byte fingerprints[];
+
+	/**
+	 * Builds a filter holding every non-null key in keys, hashing them with Murmur3-128.
+	 * @param keys
+	 */
+	public BinaryFuseFilter(Collection<String> keys) {
+		this(keys, HashStrategy.MURMUR3);
+	}
+
+	/**
+	 * Builds a filter holding every non-null key in keys, hashing them with strategy. Keys that
+	 * differ only in case are the same key.
+	 * @param keys
+	 * @param strategy
+	 */
+	public BinaryFuseFilter(Collection<String> keys, HashStrategy strategy) {
+		this.strategy = strategy;
+		long digests[] = new long[keys.size()];
+		int size = 0;
+		for(String key : keys) {
+			if(key != null) {
+				digests[size++] = strategy.hash(key);
+			}
+		}
+		allocate(size);
+		populate(digests, size);
+	}
+
+	/**
+	 * Sizes the segments and the fingerprint array for size keys.
+	 * @param size
+	 */
+	private void allocate(int size) {
+		segmentLength = size == 0 ? 4 : 1 << (int) Math.floor(Math.log(size) / Math.log(3.33) + 2.25);
+		segmentLength = Math.min(segmentLength, MAX_SEGMENT_LENGTH);
+		segmentLengthMask = segmentLength - 1;
+		double sizeFactor = size <= 1 ? 0 : Math.max(1.125, 0.875 + 0.25 * Math.log(1000000.0) / Math.log(size));
+		long capacity = size <= 1 ? 0 : Math.round(size * sizeFactor);
+		long segmentCount = (capacity + segmentLength - 1) / segmentLength - 2;
+		long arrayLength = (segmentCount + 2) * segmentLength;
+		segmentCount = (arrayLength + segmentLength - 1) / segmentLength;
+		segmentCount = segmentCount <= 2 ? 1 : segmentCount - 2;
+		arrayLength = (segmentCount + 2) * segmentLength;
+		if(arrayLength > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("too many keys for a BinaryFuseFilter: " + size);
+		}
+		segmentCountLength = (int) (segmentCount * segmentLength);
+		fingerprints = new byte[(int) arrayLength];
+	}
+
+	/**
+	 * Solves the fingerprint array for the first size digests. Keys are sorted into blocks by their
+	 * segment, counted into the slots they map to, and peeled: a slot hit by one remaining key fixes
+	 * that key, which is removed from its other two slots. The keys are then assigned in reverse
+	 * peeling order. A new seed is tried when peeling gets stuck.
+	 * @param digests
+	 * @param size
+	 */
+	private void populate(long digests[], int size) {
+		int capacity = fingerprints.length;
+		long order[] = new long[size + 1];
+		long slotHash[] = new long[capacity];
+		byte slotCount[] = new byte[capacity];
+		byte orderSlot[] = new byte[size];
+		int alone[] = new int[capacity];
+		int blockBits = 1;
+		while((1L << blockBits) < segmentCountLength / segmentLength) {
+			blockBits++;
+		}
+		int block = 1 << blockBits;
+		int startPos[] = new int[block];
+		int h012[] = new int[5];
+		long rng = 0x726b2b9d438b9d4dL;
+
+		for(int loop = 0; ; loop++) {
+			if(loop == MAX_ITERATIONS) {
+				throw new IllegalStateException("could not build a BinaryFuseFilter of " + size + " keys");
+			}
+			rng += 0x9e3779b97f4a7c15L;
+			seed = mix(rng);
+			Arrays.fill(order, 0, size, 0);
+			order[size] = 1;
+			Arrays.fill(slotHash, 0);
+			Arrays.fill(slotCount, (byte) 0);
+
+			//bucket the hashes by their top bits so nearby keys fill nearby slots
+			for(int i = 0; i < block; i++) {
+				startPos[i] = (int) (((long) i * size) >>> blockBits);
+			}
+			for(int i = 0; i < size; i++) {
+				long hash = mix(digests[i] + seed);
+				int segment = (int) (hash >>> (64 - blockBits));
+				while(order[startPos[segment]] != 0) {
+					segment = (segment + 1) & (block - 1);
+				}
+				order[startPos[segment]++] = hash;
+			}
+
+			boolean error = false;
+			int duplicates = 0;
+			for(int i = 0; i < size; i++) {
+				long hash = order[i];
+				int h0 = slot(0, hash), h1 = slot(1, hash), h2 = slot(2, hash);
+				slotCount[h0] += 4;
+				slotHash[h0] ^= hash;
+				slotCount[h1] += 4;
+				slotCount[h1] ^= 1;
+				slotHash[h1] ^= hash;
+				slotCount[h2] += 4;
+				slotCount[h2] ^= 2;
+				slotHash[h2] ^= hash;
+				//the same key twice cancels out of its slots; take it back out
+				if((slotHash[h0] & slotHash[h1] & slotHash[h2]) == 0) {
+					if((slotHash[h0] == 0 && slotCount[h0] == 8) || (slotHash[h1] == 0 && slotCount[h1] == 8)
+							|| (slotHash[h2] == 0 && slotCount[h2] == 8)) {
+						duplicates++;
+						slotCount[h0] -= 4;
+						slotHash[h0] ^= hash;
+						slotCount[h1] -= 4;
+						slotCount[h1] ^= 1;
+						slotHash[h1] ^= hash;
+						slotCount[h2] -= 4;
+						slotCount[h2] ^= 2;
+						slotHash[h2] ^= hash;
+					}
+				}
+				//a count that wrapped past 63 keys leaves the low bits unusable
+				error |= (slotCount[h0] & 0xff) < 4 || (slotCount[h1] & 0xff) < 4 || (slotCount[h2] & 0xff) < 4;
+			}
+			if(error) {
+				continue;
+			}
+
+			int queued = 0;
+			for(int i = 0; i < capacity; i++) {
+				alone[queued] = i;
+				queued += (slotCount[i] & 0xff) >>> 2 == 1 ? 1 : 0;
+			}
+			int stacked = 0;
+			while(queued > 0) {
+				int index = alone[--queued];
+				if((slotCount[index] & 0xff) >>> 2 == 1) {
+					long hash = slotHash[index];
+					int found = slotCount[index] & 3;
+					orderSlot[stacked] = (byte) found;
+					order[stacked++] = hash;
+					h012[0] = slot(0, hash);
+					h012[1] = slot(1, hash);
+					h012[2] = slot(2, hash);
+					h012[3] = h012[0];
+					h012[4] = h012[1];
+					for(int j = 1; j <= 2; j++) {
+						int other = h012[found + j];
+						alone[queued] = other;
+						queued += (slotCount[other] & 0xff) >>> 2 == 2 ? 1 : 0;
+						slotCount[other] -= 4;
+						slotCount[other] ^= mod3(found + j);
+						slotHash[other] ^= hash;
+					}
+				}
+			}
+			if(stacked + duplicates == size) {
+				dataSize = stacked;
+				break;
+			}
+		}
+
+		for(int i = dataSize - 1; i >= 0; i--) {
+			long hash = order[i];
+			int found = orderSlot[i];
+			h012[0] = slot(0, hash);
+			h012[1] = slot(1, hash);
+			h012[2] = slot(2, hash);
+			h012[3] = h012[0];
+			h012[4] = h012[1];
+			fingerprints[h012[found]] = (byte) (fingerprint(hash) ^ fingerprints[h012[found + 1]] ^ fingerprints[h012[found + 2]]);
+		}
+	}
+
+	/**
+	 * Always throws: the filter is solved for a fixed key set when it is built.
+	 * @param s
+	 */
+	public void add(String s) {
+		throw new UnsupportedOperationException("a BinaryFuseFilter is built once from all of its keys");
+	}
+
+	/**
+	 * Returns true if s was one of the keys the filter was built from, and for about 1 in 256 other
+	 * strings; otherwise returns false. This method must also be case-insensitive.
+	 * @param s
+	 * @return
+	 */
+	public boolean appears(String s) {
+		return s != null && appearsDigest(strategy.hash(s));
+	}
+
+	public HashStrategy strategy() {
+		return strategy;
+	}
+
+	/**
+	 * Always throws, like add.
+	 * @param digest
+	 */
+	public void addDigest(long digest) {
+		throw new UnsupportedOperationException("a BinaryFuseFilter is built once from all of its keys");
+	}
+
+	/**
+	 * Reads the three slots of a key digest and checks them against its fingerprint.
+	 * @param digest
+	 * @return
+	 */
+	public boolean appearsDigest(long digest) {
+		if(dataSize == 0) {
+			return false;
+		}
+		long hash = mix(digest + seed);
+		long hi = multiplyHighUnsigned(hash, segmentCountLength);
+		int h0 = (int) hi;
+		int h1 = (h0 + segmentLength) ^ ((int) (hash >>> 18) & segmentLengthMask);
+		int h2 = (h0 + 2 * segmentLength) ^ ((int) hash & segmentLengthMask);
+		return (fingerprint(hash) ^ fingerprints[h0] ^ fingerprints[h1] ^ fingerprints[h2]) == 0;
+	}
+
+	/**
+	 * Returns the false positive rate of 8-bit fingerprints, 1/256, which does not depend on how many
+	 * keys the filter holds.
+	 * @return
+	 */
+	public double expectedFalsePositiveRate() {
+		return dataSize == 0 ? 0 : 1.0 / 256;
+	}
+
+	/**
+	 * Returns expectedFalsePositiveRate; the filter has no bits whose fill could be measured.
+	 * @return
+	 */
+	public double estimateFalsePositiveRate() {
+		return expectedFalsePositiveRate();
+	}
+
+	/**
+	 * Returns the size of the filter in bits.
+	 * @return
+	 */
+	public long filterSize() {
+		return fingerprints.length * 8L;
+	}
+
+	/**
+	 * Returns the number of distinct keys the filter was built from.
+	 * @return
+	 */
+	public int dataSize() {
+		return dataSize;
+	}
+
+	/**
+	 * Returns the number of slots read per lookup.
+	 * @return
+	 */
+	public int numHashes() {
+		return 3;
+	}
+
+	/**
+	 * Returns the slot of hash in the index-th of its three consecutive segments.
+	 * @param index
+	 * @param hash
+	 * @return
+	 */
+	private int slot(int index, long hash) {
+		long h = multiplyHighUnsigned(hash, segmentCountLength) + (long) index * segmentLength;
+		long hh = hash & ((1L << 36) - 1);
+		return (int) (h ^ ((hh >>> (36 - 18 * index)) & segmentLengthMask));
+	}
+
+	private static byte fingerprint(long hash) {
+		return (byte) (hash ^ (hash >>> 32));
+	}
+
+	private static int mod3(int x) {
+		return x > 2 ? x - 3 : x;
+	}
+
+	/**
+	 * High 64 bits of the unsigned product of hash and a non-negative n.
+	 * @param hash
+	 * @param n
+	 * @return
+	 */
+	private static long multiplyHighUnsigned(long hash, long n) {
+		return Math.multiplyHigh(hash, n) + ((hash >> 63) & n);
+	}
+
+	/**
+	 * Murmur3 64-bit finalizer.
+	 * @param h
+	 * @return
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
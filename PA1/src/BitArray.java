@@ -0,0 +1,296 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 
+ * Fixed size array of bits addressed by long and stored off the Java heap in direct ByteBuffers.
+ * Bits are packed into 64-bit words and the words are split over 1 GiB buffers, so an array can
+ * hold far more than the 2^31 bits a java.util.BitSet can. setAtomic and getAtomic may be called
+ * from any number of threads at once; the plain accessors need external synchronization. Words are
+ * stored little-endian so an array written with writeTo can be mapped back on any machine.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class BitArray {
+	
+	private static final VarHandle WORD = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	static final int CHUNK_WORDS_SHIFT = 27;
+	static final long CHUNK_WORDS_MASK = (1L << CHUNK_WORDS_SHIFT) - 1;
+	
+	private long bitSize, wordCount;
+	private ByteBuffer chunks[];
+	
+	/**
+	 * Creates an array of bitSize bits, all set to 0.
+	 * @param bitSize
+	 */
+	public BitArray(long bitSize) {
+		if(bitSize <= 0) {
+			throw new IllegalArgumentException("bitSize must be positive: " + bitSize);
+		}
+		this.bitSize = bitSize;
+		wordCount = (bitSize + 63) >>> 6;
+		int numChunks = (int) ((wordCount + CHUNK_WORDS_MASK) >>> CHUNK_WORDS_SHIFT);
+		chunks = new ByteBuffer[numChunks];
+		for(int i = 0; i < numChunks; i++) {
+			long words = Math.min(wordCount - ((long) i << CHUNK_WORDS_SHIFT), 1L << CHUNK_WORDS_SHIFT);
+			//align to a 64-byte cache line so blocked filters never straddle two lines
+			ByteBuffer raw = ByteBuffer.allocateDirect((int) (((words << 3) + 63) & ~63) + 63);
+			chunks[i] = raw.alignedSlice(64).limit((int) (words << 3)).slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+	
+	/**
+	 * Creates an array of bitSize bits stored in the given buffers, 2^27 words per buffer.
+	 * @param bitSize
+	 * @param chunks
+	 */
+	private BitArray(long bitSize, ByteBuffer chunks[]) {
+		this.bitSize = bitSize;
+		this.wordCount = (bitSize + 63) >>> 6;
+		this.chunks = chunks;
+	}
+	
+	/**
+	 * Maps the words of an array of bitSize bits written by writeTo at position in channel. The
+	 * returned array reads and writes the file directly through the OS page cache; with
+	 * MapMode.READ_ONLY any set throws java.nio.ReadOnlyBufferException.
+	 * @param channel
+	 * @param position - file offset of the first word, a multiple of 64 keeps words cache aligned
+	 * @param bitSize
+	 * @param mode
+	 * @return
+	 * @throws IOException
+	 */
+	static BitArray map(FileChannel channel, long position, long bitSize, FileChannel.MapMode mode) throws IOException {
+		long wordCount = (bitSize + 63) >>> 6;
+		int numChunks = (int) ((wordCount + CHUNK_WORDS_MASK) >>> CHUNK_WORDS_SHIFT);
+		ByteBuffer chunks[] = new ByteBuffer[numChunks];
+		for(int i = 0; i < numChunks; i++) {
+			long first = (long) i << CHUNK_WORDS_SHIFT;
+			long words = Math.min(wordCount - first, 1L << CHUNK_WORDS_SHIFT);
+			chunks[i] = channel.map(mode, position + (first << 3), words << 3).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return new BitArray(bitSize, chunks);
+	}
+	
+	/**
+	 * Writes the words of the array to channel, wordCount() * 8 bytes in little-endian order.
+	 * @param channel
+	 * @throws IOException
+	 */
+	void writeTo(WritableByteChannel channel) throws IOException {
+		for(ByteBuffer chunk : chunks) {
+			ByteBuffer src = chunk.duplicate();
+			src.clear();
+			while(src.hasRemaining()) {
+				channel.write(src);
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the words of the array with wordCount() * 8 bytes read from channel.
+	 * @param channel
+	 * @throws IOException
+	 */
+	void readFrom(ReadableByteChannel channel) throws IOException {
+		for(ByteBuffer chunk : chunks) {
+			ByteBuffer dst = chunk.duplicate();
+			dst.clear();
+			while(dst.hasRemaining()) {
+				if(channel.read(dst) < 0) {
+					throw new EOFException("bit array truncated");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sets the bit at index to 1.
+	 * @param index
+	 */
+	public void set(long index) {
+		long w = index >>> 6;
+		ByteBuffer chunk = chunks[(int) (w >>> CHUNK_WORDS_SHIFT)];
+		int offset = (int) (w & CHUNK_WORDS_MASK) << 3;
+		chunk.putLong(offset, chunk.getLong(offset) | (1L << index));
+	}
+	
+	/**
+	 * Returns true if the bit at index is 1.
+	 * @param index
+	 * @return
+	 */
+	public boolean get(long index) {
+		long w = index >>> 6;
+		return (chunks[(int) (w >>> CHUNK_WORDS_SHIFT)].getLong((int) (w & CHUNK_WORDS_MASK) << 3) & (1L << index)) != 0;
+	}
+	
+	/**
+	 * Sets the bit at index to 1 with an atomic OR on its word, so concurrent sets of other bits in
+	 * the same word are never lost.
+	 * @param index
+	 * @return true if the bit was 0 before this call
+	 */
+	public boolean setAtomic(long index) {
+		long w = index >>> 6;
+		long mask = 1L << index;
+		long old = (long) WORD.getAndBitwiseOr(chunks[(int) (w >>> CHUNK_WORDS_SHIFT)], (int) (w & CHUNK_WORDS_MASK) << 3, mask);
+		return (old & mask) == 0;
+	}
+	
+	/**
+	 * Returns true if the bit at index is 1, reading its word with acquire semantics so bits set by
+	 * setAtomic in other threads become visible.
+	 * @param index
+	 * @return
+	 */
+	public boolean getAtomic(long index) {
+		long w = index >>> 6;
+		long word = (long) WORD.getAcquire(chunks[(int) (w >>> CHUNK_WORDS_SHIFT)], (int) (w & CHUNK_WORDS_MASK) << 3);
+		return (word & (1L << index)) != 0;
+	}
+	
+	/**
+	 * Sets the numHashes bits a Bloom filter of bitSize() bits probes for a key digest, at the
+	 * positions given by BloomFilter.probe.
+	 * @param digest
+	 * @param numHashes
+	 */
+	public void setProbes(long digest, int numHashes) {
+		for(int i = 0; i < numHashes; i++) {
+			set(BloomFilter.probe(digest, i, bitSize));
+		}
+	}
+	
+	/**
+	 * Returns true if all numHashes probes of a key digest are set.
+	 * @param digest
+	 * @param numHashes
+	 * @return
+	 */
+	public boolean getProbes(long digest, int numHashes) {
+		for(int i = 0; i < numHashes; i++) {
+			if(!get(BloomFilter.probe(digest, i, bitSize))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Sets the probes of a key digest like setProbes, with setAtomic.
+	 * @param digest
+	 * @param numHashes
+	 */
+	public void setProbesAtomic(long digest, int numHashes) {
+		for(int i = 0; i < numHashes; i++) {
+			setAtomic(BloomFilter.probe(digest, i, bitSize));
+		}
+	}
+	
+	/**
+	 * Returns true if all numHashes probes of a key digest are set, reading them with getAtomic.
+	 * @param digest
+	 * @param numHashes
+	 * @return
+	 */
+	public boolean getProbesAtomic(long digest, int numHashes) {
+		for(int i = 0; i < numHashes; i++) {
+			if(!getAtomic(BloomFilter.probe(digest, i, bitSize))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the word holding bits [64*w, 64*w + 63].
+	 * @param w
+	 * @return
+	 */
+	public long getWord(long w) {
+		return chunks[(int) (w >>> CHUNK_WORDS_SHIFT)].getLong((int) (w & CHUNK_WORDS_MASK) << 3);
+	}
+	
+	/**
+	 * Replaces the word holding bits [64*w, 64*w + 63].
+	 * @param w
+	 * @param value
+	 */
+	public void setWord(long w, long value) {
+		chunks[(int) (w >>> CHUNK_WORDS_SHIFT)].putLong((int) (w & CHUNK_WORDS_MASK) << 3, value);
+	}
+	
+	/**
+	 * Returns the number of bits in the array.
+	 * @return
+	 */
+	public long bitSize() {
+		return bitSize;
+	}
+	
+	/**
+	 * Returns the number of 64-bit words backing the array.
+	 * @return
+	 */
+	public long wordCount() {
+		return wordCount;
+	}
+	
+	/**
+	 * Returns the number of bits set to 1.
+	 * @return
+	 */
+	public long cardinality() {
+		long count = 0;
+		for(long w = 0; w < wordCount; w++) {
+			count += Long.bitCount(getWord(w));
+		}
+		return count;
+	}
+	
+	/**
+	 * Sets every bit that is set in other, which must have the same size.
+	 * @param other
+	 */
+	public void or(BitArray other) {
+		if(other.bitSize != bitSize) {
+			throw new IllegalArgumentException("bit arrays of " + bitSize + " and " + other.bitSize + " bits");
+		}
+		for(long w = 0; w < wordCount; w++) {
+			setWord(w, getWord(w) | other.getWord(w));
+		}
+	}
+	
+	/**
+	 * Clears every bit that is not set in other, which must have the same size.
+	 * @param other
+	 */
+	public void and(BitArray other) {
+		if(other.bitSize != bitSize) {
+			throw new IllegalArgumentException("bit arrays of " + bitSize + " and " + other.bitSize + " bits");
+		}
+		for(long w = 0; w < wordCount; w++) {
+			setWord(w, getWord(w) & other.getWord(w));
+		}
+	}
+	
+	/**
+	 * Sets every bit to 0.
+	 */
+	public void clear() {
+		for(long w = 0; w < wordCount; w++) {
+			setWord(w, 0);
+		}
+	}
+}
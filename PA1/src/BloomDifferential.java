@@ -1,6 +1,23 @@
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.management.JMException;
 
 /**
  * Uses a Bloomfilter in order to store record of DiffFile.txt. Used to check performance compared to 
@@ -11,9 +28,20 @@ import java.util.Scanner;
  */
 public class BloomDifferential {
 	
-	private BloomFilterFNV bFilter;
+	private BloomFilter bFilter;
+	private volatile BloomFilter masterFilter;
+	private volatile long masterFilterVersion;
+	private File masterFilterFile;
+	private Object masterLock = new Object();
+	private RecordFiles files;
+	private PerfectHashIndex difOffsets;
+	private InstrumentedBloomFilter metrics;
+	private String metricsName;
 	private File difFile,dataFile;
 	private int difFileSize,bitsPerElement;
+	private boolean counting;
+	private HashStrategy strategy = HashStrategy.XXHASH64;
+	private Set<String> retired = new HashSet<String>();
 	
 	/**
 	 * Sets values of the Bloomfilter to records in DiffFile.txt.
@@ -23,41 +51,140 @@ public class BloomDifferential {
 	 * @throws FileNotFoundException
 	 */
 	public BloomDifferential(int bitsPerElement, String difFileName, String dataFileName) throws FileNotFoundException{
+		this(bitsPerElement, difFileName, dataFileName, false);
+	}
+	
+	/**
+	 * Sets values of the Bloomfilter to records in DiffFile.txt. When counting is true the records
+	 * are kept in a CountingBloomFilter so keys merged back into the data file can be retired with
+	 * retireKey instead of rebuilding the filter.
+	 * 
+	 * @param bitsPerElement
+	 * @param difFileName
+	 * @param dataFileName
+	 * @param counting
+	 * @throws FileNotFoundException
+	 */
+	public BloomDifferential(int bitsPerElement, String difFileName, String dataFileName, boolean counting) throws FileNotFoundException{
+		this(bitsPerElement, difFileName, dataFileName, counting, HashStrategy.XXHASH64);
+	}
+	
+	/**
+	 * Sets values of the Bloomfilter to records in DiffFile.txt, hashing each key once with strategy
+	 * and deriving its probes from the digest. The other constructors hash with xxHash64.
+	 * 
+	 * @param bitsPerElement
+	 * @param difFileName
+	 * @param dataFileName
+	 * @param counting
+	 * @param strategy
+	 * @throws FileNotFoundException
+	 */
+	public BloomDifferential(int bitsPerElement, String difFileName, String dataFileName, boolean counting, HashStrategy strategy) throws FileNotFoundException{
+		if(strategy == null) {
+			throw new IllegalArgumentException("need a HashStrategy");
+		}
 		this.bitsPerElement = bitsPerElement;
+		this.counting = counting;
+		this.strategy = strategy;
 		difFile = new File(difFileName);
 		dataFile = new File(dataFileName);
+		files = new RecordFiles(difFile, dataFile);
 		difFileSize = getDifSize();
 		bFilter = createFilter();
-		
+	}
+	
+	/**
+	 * Sets values of the Bloomfilter to records in DiffFile.txt, keeping the filter in filterFileName
+	 * between runs. When that file was saved from the current DiffFile.txt, with the size
+	 * createFilter would give it, it is memory-mapped without reading DiffFile.txt; otherwise the
+	 * filter is rebuilt and saved there.
+	 * 
+	 * @param bitsPerElement
+	 * @param difFileName
+	 * @param dataFileName
+	 * @param filterFileName
+	 * @throws IOException
+	 */
+	public BloomDifferential(int bitsPerElement, String difFileName, String dataFileName, String filterFileName) throws IOException{
+		this.bitsPerElement = bitsPerElement;
+		difFile = new File(difFileName);
+		dataFile = new File(dataFileName);
+		files = new RecordFiles(difFile, dataFile);
+		bFilter = savedFilter(new File(filterFileName), difFile, strategy);
+		if(bFilter != null) {
+			difFileSize = bFilter.dataSize();
+		}else {
+			difFileSize = getDifSize();
+			bFilter = createFilter();
+			saveFilter(filterFileName);
+		}
 	}
 	
 	/**
 	 * Returns a Bloom Filter corresponding to the records in the differential fileDiffFile.txt.
 	 * @throws FileNotFoundException
 	 */
-	public BloomFilterFNV createFilter() throws FileNotFoundException {
-		 BloomFilterFNV b = new BloomFilterFNV(difFileSize,bitsPerElement);
+	public BloomFilter createFilter() throws FileNotFoundException {
+		 BloomFilter b = emptyFilter();
 		 
-		 Scanner sc = new Scanner(difFile);
-		 while(sc.hasNextLine()) {
-			 String record = sc.nextLine();
-			 Scanner s = new Scanner(record);
-			 String key = "";
-			 int count = 0;
-			 while(s.hasNext()) {
-				 if(count == 4) {
-					 s.close();
-					 b.add(key.trim());
-					 break;
-				 }
-				 key += s.next() + " ";
-				 count++;
-			 }
+		 //worker threads fill copies of the filter from parts of DiffFile.txt that are then merged
+		 if(!difFile.exists()) {
+			 throw new FileNotFoundException(difFile.getPath());
+		 }
+		 try {
+			 ParallelBloomBuilder.build(b, difFile, ForkJoinPool.commonPool());
+		 }catch(IOException e) {
+			 throw new UncheckedIOException(e);
 		 }
-		 sc.close();
 		 return b;
 	}
 	
+	/**
+	 * Returns the empty filter createFilter fills with the keys of DiffFile.txt, sized for at least
+	 * one key so an empty DiffFile.txt still gives a usable filter.
+	 * @return
+	 */
+	private BloomFilter emptyFilter() {
+		if(counting) {
+			return new CountingBloomFilter(Math.max(difFileSize, 1),bitsPerElement,strategy);
+		}
+		return new BloomFilterRan(Math.max(difFileSize, 1),bitsPerElement,strategy);
+	}
+	
+	/**
+	 * Returns the BloomFilterRan saved in filterFile when it was saved from the current version of
+	 * source, hashes with strategy and has the size FilterSizing gives bitsPerElement bits per key,
+	 * otherwise null. Source is not read: the size must be the one of the largest key count that
+	 * fits in the filter, the only count that could have given it, and the filter must hold no more
+	 * keys than that. A file that cannot be read is
+	 * treated as out of date, so it is rebuilt and overwritten.
+	 * @param filterFile
+	 * @param source
+	 * @param strategy
+	 * @return
+	 */
+	private BloomFilter savedFilter(File filterFile, File source, HashStrategy strategy) {
+		if(!filterFile.exists()) {
+			return null;
+		}
+		BloomFilter saved;
+		try {
+			saved = BloomFilterFile.mapFrom(filterFile.toPath(), source);
+		}catch(IOException e) {
+			return null;
+		}
+		if(saved == null || saved.getClass() != BloomFilterRan.class || saved.strategy() != strategy) {
+			return null;
+		}
+		long keys = Math.max((saved.filterSize() - 1) / bitsPerElement, 1);
+		FilterSizing size = FilterSizing.forBitsPerElement(keys, bitsPerElement);
+		if(saved.filterSize() != size.bits() || saved.numHashes() != size.numHashes() || saved.dataSize() > keys) {
+			return null;
+		}
+		return saved;
+	}
+	
 	/**
 	 * Gets a key as parameter and returns the record corresponding to the record 
 	 * by consulting the Bloomfilter first.
@@ -69,13 +196,34 @@ public class BloomDifferential {
 		if(key == null) {
 			return null;
 		}
-		
-		if(bFilter.appears(key)) {
+		return files.retrieve(key, this::findRecord);
+	}
+	
+	/**
+	 * Looks up the record of key in the files, bypassing the cache.
+	 * @param key
+	 * @return
+	 * @throws FileNotFoundException
+	 */
+	private String findRecord(String key) throws FileNotFoundException {
+		if(difOffsets != null) {
+			String record = findInDifFile(key);
+			if(record == null && mayBeInDataFile(key)) {
+				record = checkFileForKey(key,dataFile);
+			}
+			return record != null ? record : "record not found";
+		}
+		if(difFilter().appears(key)) {
 			String record = checkFileForKey(key,difFile);
 			if(record != null) {
 				return record;
 			}
-		}else {
+			if(metrics != null) {
+				metrics.recordFalsePositive();
+			}
+		}
+		//a false positive may still have a record in the data file
+		if(mayBeInDataFile(key)) {
 			String record = checkFileForKey(key,dataFile);
 			if(record != null) {
 				return record;
@@ -84,6 +232,358 @@ public class BloomDifferential {
 		return "record not found";
 	}
 	
+	/**
+	 * Retrieves the records of many keys at once. All keys are first checked against the Bloomfilter,
+	 * then the keys it reports are looked up in DiffFile.txt and the rest, with any it reported
+	 * falsely, in database.txt, with a single pass over each file instead of one pass per key. Each key maps to the same answer
+	 * retrieveRecord would give, including "record not found".
+	 * @param keys
+	 * @return map from each non-null key, in iteration order, to its record
+	 * @throws FileNotFoundException
+	 */
+	public Map<String,String> retrieveRecords(Collection<String> keys) throws FileNotFoundException {
+		return retrieveRecords(keys, true);
+	}
+	
+	/**
+	 * Retrieves the records of many keys at once like retrieveRecords(keys), reading the cache
+	 * first only when checkCache is true, for callers that have already missed it for these keys.
+	 * The records found are cached either way.
+	 * @param keys
+	 * @param checkCache
+	 * @return
+	 * @throws FileNotFoundException
+	 */
+	Map<String,String> retrieveRecords(Collection<String> keys, boolean checkCache) throws FileNotFoundException {
+		RecordCache cache = files.getCache();
+		Map<String,String> records = new LinkedHashMap<String,String>();
+		List<String> uncached = new ArrayList<String>();
+		for(String key : keys) {
+			if(key != null) {
+				String record = cache == null || !checkCache ? null : cache.get(key);
+				records.put(key, record);
+				if(record == null) {
+					uncached.add(key);
+				}
+			}
+		}
+		
+		String keyArray[] = uncached.toArray(new String[0]);
+		List<String> difKeys = new ArrayList<String>(), dataKeys = new ArrayList<String>();
+		Map<String,String> found = new HashMap<String,String>();
+		if(difOffsets != null) {
+			for(String key : keyArray) {
+				String record = findInDifFile(key);
+				if(record != null) {
+					found.put(key, record);
+				}else if(mayBeInDataFile(key)) {
+					dataKeys.add(key);
+				}
+			}
+		}else {
+			boolean inDif[] = difFilter().appearsAll(keyArray);
+			for(int i = 0; i < keyArray.length; i++) {
+				if(inDif[i]) {
+					difKeys.add(keyArray[i]);
+				}else if(mayBeInDataFile(keyArray[i])) {
+					dataKeys.add(keyArray[i]);
+				}
+			}
+		}
+		
+		found.putAll(checkFileForKeys(difKeys, difFile));
+		for(String key : difKeys) {
+			if(!found.containsKey(key)) {
+				if(metrics != null) {
+					metrics.recordFalsePositive();
+				}
+				if(mayBeInDataFile(key)) {
+					dataKeys.add(key);
+				}
+			}
+		}
+		found.putAll(checkFileForKeys(dataKeys, dataFile));
+		
+		for(String key : keyArray) {
+			String record = found.getOrDefault(key, "record not found");
+			records.put(key, record);
+			if(cache != null) {
+				cache.put(key, record);
+			}
+		}
+		return records;
+	}
+	
+	/**
+	 * Replaces the Bloomfilter of DiffFile.txt with a BinaryFuseFilter built from its keys. For the
+	 * same false positive rate it takes fewer bits once DiffFile.txt holds more than a few hundred
+	 * keys, about 10 per key at ten thousand against 12, and each lookup reads three bytes.
+	 * The key set is fixed once built, so retireKey is no longer available.
+	 * @throws IOException
+	 */
+	public void useBinaryFuseFilter() throws IOException {
+		MappedRecordScanner scanner = new MappedRecordScanner(difFile);
+		List<String> keys = new ArrayList<String>();
+		for(int c = 0; c < scanner.chunkCount(); c++) {
+			scanner.forEachKey(c, keys::add);
+		}
+		bFilter = new BinaryFuseFilter(keys);
+		counting = false;
+		files.invalidateCache();
+		if(metrics != null) {
+			try {
+				enableMetrics(metricsName);
+			}catch(JMException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Maps every key of DiffFile.txt to the offset of its record with a PerfectHashIndex. Afterwards
+	 * a lookup reads the one line of DiffFile.txt its key maps to and compares keys instead of
+	 * consulting the Bloomfilter and scanning DiffFile.txt, and keys that are not there go on to
+	 * database.txt. The index is rebuilt when DiffFile.txt changes.
+	 * @throws IOException
+	 */
+	public void usePerfectHashIndex() throws IOException {
+		difOffsets = PerfectHashIndex.build(difFile);
+		files.invalidateCache();
+	}
+	
+	/**
+	 * Returns the record of key in DiffFile.txt from the PerfectHashIndex, or null.
+	 * @param key
+	 * @return
+	 * @throws FileNotFoundException
+	 */
+	private String findInDifFile(String key) throws FileNotFoundException {
+		if(!difFile.exists()) {
+			throw new FileNotFoundException(difFile.getPath());
+		}
+		try {
+			if(difOffsets.isStale()) {
+				difOffsets.close();
+				difOffsets = PerfectHashIndex.build(difFile);
+				files.invalidateCache();
+			}
+			return difOffsets.find(key);
+		}catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Keeps a second Bloomfilter over the keys of database.txt, so keys that are in neither file are
+	 * answered "record not found" without scanning database.txt. The filter is kept in
+	 * masterFilterFileName and only rebuilt when that file was not saved from the current
+	 * database.txt with the size createMasterFilter would give it, including when database.txt
+	 * changes while this differential is in use.
+	 * @param masterFilterFileName
+	 * @throws IOException
+	 */
+	public void useMasterFilter(String masterFilterFileName) throws IOException {
+		synchronized(masterLock) {
+			File file = new File(masterFilterFileName);
+			long version = dataFile.lastModified();
+			BloomFilter master = savedFilter(file, dataFile, HashStrategy.XXHASH64);
+			if(master == null) {
+				master = createMasterFilter();
+				//a filter of a database.txt that changed while it was read must not pass for current
+				if(dataFile.lastModified() == version) {
+					BloomFilterFile.save(master, file.toPath(), dataFile);
+				}
+			}
+			//the filter is published before its version, so a lookup that sees the version sees the filter
+			masterFilterFile = file;
+			masterFilter = master;
+			masterFilterVersion = version;
+			files.invalidateCache();
+		}
+	}
+	
+	/**
+	 * Returns a Bloom Filter corresponding to the keys of the records in database.txt.
+	 * @return
+	 * @throws IOException
+	 */
+	public BloomFilter createMasterFilter() throws IOException {
+		return ParallelBloomBuilder.build(emptyMasterFilter(), dataFile, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Returns the empty filter createMasterFilter fills, sized for the records of database.txt.
+	 * @return
+	 * @throws IOException
+	 */
+	private BloomFilter emptyMasterFilter() throws IOException {
+		int count = 0;
+		try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(dataFile), StandardCharsets.UTF_8))) {
+			while(in.readLine() != null) {
+				count++;
+			}
+		}
+		return new BloomFilterRan(Math.max(count, 1), bitsPerElement, HashStrategy.XXHASH64);
+	}
+	
+	/**
+	 * Returns false if the master filter rules out key being in database.txt, rebuilding the filter
+	 * first if database.txt has changed since it was built. Lookups that find it changed wait while
+	 * one of them rebuilds the filter, and none sees a partly built filter.
+	 * @param key
+	 * @return
+	 */
+	private boolean mayBeInDataFile(String key) {
+		if(masterFilter == null) {
+			return true;
+		}
+		if(dataFile.lastModified() != masterFilterVersion) {
+			synchronized(masterLock) {
+				if(dataFile.lastModified() != masterFilterVersion) {
+					try {
+						useMasterFilter(masterFilterFile.getPath());
+					}catch(IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			}
+		}
+		return masterFilter.appears(key.trim());
+	}
+	
+	/**
+	 * Removes key from the filter once its record has been merged from DiffFile.txt back into
+	 * database.txt, so later lookups of key go straight to the data file. Call it before the record
+	 * is deleted from DiffFile.txt: a key is only removed when its record is confirmed there, and
+	 * only once, since decrementing the counters of a false positive or of a key already retired
+	 * would remove other keys. Only available when the differential was created with a counting
+	 * filter.
+	 * @param key
+	 * @return true if key was in DiffFile.txt and has been removed
+	 * @throws FileNotFoundException
+	 */
+	public boolean retireKey(String key) throws FileNotFoundException {
+		if(!counting) {
+			throw new UnsupportedOperationException("retireKey needs a counting filter");
+		}
+		if(key == null) {
+			return false;
+		}
+		String trimmed = key.trim();
+		if(retired.contains(trimmed) || checkFileForKey(trimmed, difFile) == null) {
+			return false;
+		}
+		boolean removed = ((CountingBloomFilter) bFilter).remove(trimmed);
+		if(removed) {
+			retired.add(trimmed);
+			//cached answers for this key, and for false positives sharing its counters, are now wrong
+			files.invalidateCache();
+		}
+		return removed;
+	}
+	
+	/**
+	 * Saves the filter to fileName in the BloomFilterFile format, recording the version of
+	 * DiffFile.txt it was built from.
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public void saveFilter(String fileName) throws IOException {
+		BloomFilterFile.save(bFilter, new File(fileName).toPath(), difFile);
+	}
+	
+	/**
+	 * Returns the filter over the keys of DiffFile.txt.
+	 * @return
+	 */
+	public BloomFilter getFilter() {
+		return bFilter;
+	}
+	
+	/**
+	 * Counts and times the lookups made in the filter over the keys of DiffFile.txt, and counts its
+	 * confirmed false positives: keys the filter reported that were then not found in DiffFile.txt.
+	 * The metrics are registered as a FilterMetricsMXBean named name and can be read with
+	 * getMetrics. Calling this again, or replacing the filter with useBinaryFuseFilter, starts the
+	 * counts over.
+	 * @param name
+	 * @throws JMException if the MBean cannot be registered
+	 */
+	public void enableMetrics(String name) throws JMException {
+		if(metrics != null) {
+			metrics.unregister();
+		}
+		InstrumentedBloomFilter instrumented = new InstrumentedBloomFilter(bFilter);
+		instrumented.register(name);
+		metrics = instrumented;
+		metricsName = name;
+	}
+	
+	/**
+	 * Returns the current metrics of the filter over the keys of DiffFile.txt, or null when
+	 * enableMetrics has not been called.
+	 * @return
+	 */
+	public FilterMetrics getMetrics() {
+		return metrics == null ? null : metrics.snapshot();
+	}
+	
+	/**
+	 * Returns the filter lookups go through: the instrumented filter when metrics are enabled.
+	 * @return
+	 */
+	private BloomFilter difFilter() {
+		return metrics != null ? metrics : bFilter;
+	}
+	
+	/**
+	 * Puts cache in front of retrieveRecord, so repeated lookups, including ones that end in
+	 * "record not found", are answered from memory. The cache is cleared whenever a filter or index
+	 * that lookups consult is replaced or rebuilt. Pass null to stop caching.
+	 * @param cache
+	 */
+	public void setRecordCache(RecordCache cache) {
+		files.setCache(cache);
+	}
+	
+	/**
+	 * Returns the record cache, or null when lookups are not cached.
+	 * @return
+	 */
+	public RecordCache getRecordCache() {
+		return files.getCache();
+	}
+	
+	/**
+	 * Indexes DiffFile.txt and database.txt by key, keeping the indexes in difIndexName and
+	 * dataIndexName between runs. Afterwards retrieveRecord finds a record with one positioned read
+	 * instead of scanning the whole file. An index is rebuilt when its file has changed.
+	 * @param difIndexName
+	 * @param dataIndexName
+	 * @throws IOException
+	 */
+	public void useIndexes(String difIndexName, String dataIndexName) throws IOException {
+		files.useIndexes(difIndexName, dataIndexName);
+	}
+	
+	/**
+	 * Releases the files held open by the indexes.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if(metrics != null) {
+			try {
+				metrics.unregister();
+			}catch(JMException e) {
+				throw new IOException(e);
+			}
+		}
+		if(difOffsets != null) {
+			difOffsets.close();
+		}
+		files.close();
+	}
+	
 	/**
 	 * Gets the size of the DiffFile.txt
 	 * @return
@@ -102,32 +602,26 @@ public class BloomDifferential {
 	}
 	
 	/**
-	 * Checks if the file contains the specified key.
+	 * Checks if the file contains the specified key. Uses the file's RecordIndex when useIndexes
+	 * was called, otherwise scans the memory-mapped file with a MappedRecordScanner.
 	 * @param key
 	 * @param file
 	 * @return
 	 * @throws FileNotFoundException
 	 */
 	public String checkFileForKey(String key, File file) throws FileNotFoundException {
-		Scanner sc = new Scanner(file);
-		while(sc.hasNextLine()) {
-			String record = sc.nextLine();
-			Scanner s = new Scanner(record);
-			String temp = "";
-			int count = 0;
-			while(s.hasNext()) {
-				if(count == 4) {
-					s.close();
-					if(temp.trim().equals(key.trim())){
-						return record.trim();
-					 }
-					break;
-				 }
-				temp += s.next() + " ";
-				count++;
-			}
-		}
-		sc.close();
-		return null;
+		return files.find(key, file);
+	}
+	
+	/**
+	 * Checks file for all of keys at once, through the file's RecordIndex when useIndexes was called
+	 * and otherwise with one pass of a MappedRecordScanner.
+	 * @param keys
+	 * @param file
+	 * @return map from each key that was found to its record
+	 * @throws FileNotFoundException
+	 */
+	public Map<String,String> checkFileForKeys(Collection<String> keys, File file) throws FileNotFoundException {
+		return files.findAll(keys, file);
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,448 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiPredicate;
+
+/**
+ * 
+ * Common surface of the Bloom filter implementations. Callers such as FalsePositives and
+ * BloomDifferential only depend on this interface so filters can be swapped without code changes.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public interface BloomFilter {
+	
+	/**
+	 * Number of keys hashed ahead of probing by the batch methods.
+	 */
+	int BATCH_SIZE = 64;
+	
+	/**
+	 * Sets probe i of each of the first n key digests in a filter, for addBatch.
+	 */
+	interface SetProbes {
+		void set(long digests[], int n, int i);
+	}
+	
+	/**
+	 * Clears found[j] for each of the first n key digests whose probe i is not set in a filter, for
+	 * appearsBatch. Keys already not found need not be probed.
+	 */
+	interface TestProbes {
+		void test(long digests[], boolean found[], int n, int i);
+	}
+	
+	/**
+	 * Adds the string to the filter. This method should be case-insensitive.
+	 * @param s
+	 */
+	void add(String s);
+	
+	/**
+	 * Returns true if s appears in the filter; otherwise returns false. This method 
+	 * must also be case-insensitive.
+	 * @param s
+	 * @return
+	 */
+	boolean appears(String s);
+	
+	/**
+	 * Adds the key held in len bytes of buf starting at off as UTF-8. This sets the same bits as
+	 * add(String) of the decoded key. Filters that hash keys with a HashStrategy hash ASCII keys in
+	 * place, folding case as they go, without creating a String.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	default void add(byte buf[], int off, int len) {
+		HashStrategy strategy = strategy();
+		if(strategy == null) {
+			add(new String(buf, off, len, StandardCharsets.UTF_8));
+		}else {
+			addDigest(strategy.hash(buf, off, len));
+		}
+	}
+	
+	/**
+	 * Returns true if the key held in len bytes of buf starting at off appears in the filter, the
+	 * same answer as appears(String).
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	default boolean appears(byte buf[], int off, int len) {
+		HashStrategy strategy = strategy();
+		if(strategy == null) {
+			return appears(new String(buf, off, len, StandardCharsets.UTF_8));
+		}
+		return appearsDigest(strategy.hash(buf, off, len));
+	}
+	
+	/**
+	 * Adds the key held in len bytes of buf starting at off, such as a key in a memory-mapped file.
+	 * Direct buffers are copied to a per-thread scratch array. buf's position and limit are not
+	 * changed.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	default void add(ByteBuffer buf, int off, int len) {
+		if(buf.hasArray()) {
+			add(buf.array(), buf.arrayOffset() + off, len);
+		}else {
+			add(KeyBytes.copy(buf, off, len), 0, len);
+		}
+	}
+	
+	/**
+	 * Returns true if the key held in len bytes of buf starting at off appears in the filter.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	default boolean appears(ByteBuffer buf, int off, int len) {
+		if(buf.hasArray()) {
+			return appears(buf.array(), buf.arrayOffset() + off, len);
+		}
+		return appears(KeyBytes.copy(buf, off, len), 0, len);
+	}
+	
+	/**
+	 * Returns the strategy that hashes each key once to the digest given to addDigest and
+	 * appearsDigest, or null if this filter hashes keys some other way.
+	 * @return
+	 */
+	default HashStrategy strategy() {
+		return null;
+	}
+	
+	/**
+	 * Adds the key whose digest from strategy() is digest, setting the probes BloomFilter.probe or
+	 * the filter's own layout derives from it. A caller can hash a key once and add it to several
+	 * filters with the same strategy. Only meaningful while strategy() is not null.
+	 * @param digest
+	 * @throws UnsupportedOperationException if this kind of filter never hashes keys with a strategy
+	 */
+	default void addDigest(long digest) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not hash keys with a HashStrategy");
+	}
+	
+	/**
+	 * Returns true if the key whose digest from strategy() is digest appears in the filter.
+	 * @param digest
+	 * @return
+	 * @throws UnsupportedOperationException if this kind of filter never hashes keys with a strategy
+	 */
+	default boolean appearsDigest(long digest) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not hash keys with a HashStrategy");
+	}
+	
+	/**
+	 * Returns the size of the filter.
+	 * @return
+	 */
+	long filterSize();
+	
+	/**
+	 * Returns the number of elements added to the filter.
+	 * @return
+	 */
+	int dataSize();
+	
+	/**
+	 * Returns the number of hash function used.
+	 * @return
+	 */
+	int numHashes();
+	
+	/**
+	 * Adds every non-null key in keys to the filter. Filters that hash each key once override this
+	 * with addBatch, so the memory misses of independent keys overlap.
+	 * @param keys
+	 */
+	default void addAll(String keys[]) {
+		for(String key : keys) {
+			add(key);
+		}
+	}
+	
+	/**
+	 * Returns an array whose i-th entry is appears(keys[i]). Filters that hash each key once
+	 * override this with appearsBatch.
+	 * @param keys
+	 * @return
+	 */
+	default boolean[] appearsAll(String keys[]) {
+		boolean results[] = new boolean[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			results[i] = appears(keys[i]);
+		}
+		return results;
+	}
+	
+	/**
+	 * Returns true if this filter supports emptyCopy, union and intersect, so copies of it can be
+	 * filled separately and merged.
+	 * @return
+	 */
+	default boolean canMerge() {
+		return false;
+	}
+	
+	/**
+	 * Adds every key of other to this filter by OR-ing its bits into this filter's. other must be
+	 * compatible: the same kind of filter with the same size and hash functions, such as one made by
+	 * emptyCopy. Afterwards appears(s) is true for every s that appeared in either filter.
+	 * @param other
+	 * @throws IllegalArgumentException if other is not compatible with this filter
+	 * @throws UnsupportedOperationException if this kind of filter cannot be merged
+	 */
+	default void union(BloomFilter other) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support union");
+	}
+	
+	/**
+	 * Keeps only the bits set in both this filter and other, which must be compatible as for union.
+	 * Afterwards appears(s) is true for every s that was added to both filters; a key added to just
+	 * one of them may also still appear, more often than it would in a filter built from the shared
+	 * keys alone. dataSize becomes the smaller of the two sizes, an upper bound on the keys they
+	 * share.
+	 * @param other
+	 * @throws IllegalArgumentException if other is not compatible with this filter
+	 * @throws UnsupportedOperationException if this kind of filter cannot be merged
+	 */
+	default void intersect(BloomFilter other) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support intersect");
+	}
+	
+	/**
+	 * Estimates the number of distinct keys in the filter from how many of its bits are set. Unlike
+	 * dataSize, a key added twice counts once and filters merged with union are not double counted.
+	 * @return the estimate, or infinity once every bit is set
+	 * @throws UnsupportedOperationException if this kind of filter keeps no bit count
+	 */
+	default double estimateCardinality() {
+		return estimateFromBits(bitsSet(), filterSize(), numHashes());
+	}
+	
+	/**
+	 * Returns true if the filter keeps bits, or counters, that bitsSet can count, so bitsSet,
+	 * estimateCardinality and estimateFalsePositiveRate are supported.
+	 * @return
+	 */
+	default boolean countsBits() {
+		return false;
+	}
+	
+	/**
+	 * Returns the number of bits of the filter that are set, or for counting filters the number of
+	 * non-zero counters. filterSize() bits can be set at most.
+	 * @return
+	 * @throws UnsupportedOperationException if this kind of filter keeps no bits
+	 */
+	default long bitsSet() {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not count its bits");
+	}
+	
+	/**
+	 * Returns the false positive rate expected of a filter of this size and number of hash functions
+	 * holding dataSize() keys: (1 - e^(-kn/m))^k.
+	 * @return
+	 */
+	default double expectedFalsePositiveRate() {
+		return falsePositiveRate(filterSize(), numHashes(), dataSize());
+	}
+	
+	/**
+	 * Estimates the false positive rate from the bits actually set: a key that was not added appears
+	 * when all k of its probes land on set bits, (X/m)^k. Unlike expectedFalsePositiveRate this sees
+	 * repeated keys, merged filters and poor hashing.
+	 * @return
+	 * @throws UnsupportedOperationException if this kind of filter keeps no bits
+	 */
+	default double estimateFalsePositiveRate() {
+		return Math.pow((double) bitsSet() / filterSize(), numHashes());
+	}
+	
+	/**
+	 * Returns a new empty filter with this filter's size and hash functions, so keys added to it can
+	 * be merged back with union.
+	 * @return
+	 * @throws UnsupportedOperationException if this kind of filter cannot be merged
+	 */
+	default BloomFilter emptyCopy() {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support union");
+	}
+	
+	/**
+	 * Returns other as a filter of filter's class if the two can be merged: other has the same size,
+	 * number of hash functions and strategy as filter. For union and intersect.
+	 * @param filter
+	 * @param other
+	 * @return
+	 * @throws IllegalArgumentException if other cannot be merged into filter
+	 */
+	static <T extends BloomFilter> T compatible(T filter, BloomFilter other) {
+		return compatible(filter, other, (a, b) -> true);
+	}
+	
+	/**
+	 * Returns other as a filter of filter's class if the two can be merged, like
+	 * compatible(filter, other), and sameHashing also accepts them. sameHashing compares the hash
+	 * function parameters a kind of filter keeps beyond its size and strategy.
+	 * @param filter
+	 * @param other
+	 * @param sameHashing
+	 * @return
+	 * @throws IllegalArgumentException if other cannot be merged into filter
+	 */
+	@SuppressWarnings("unchecked")
+	static <T extends BloomFilter> T compatible(T filter, BloomFilter other, BiPredicate<T,T> sameHashing) {
+		String name = filter.getClass().getSimpleName();
+		if(other.getClass() != filter.getClass()) {
+			throw new IllegalArgumentException("cannot merge a " + other.getClass().getSimpleName() + " into a " + name);
+		}
+		T o = (T) other;
+		if(o.filterSize() != filter.filterSize() || o.numHashes() != filter.numHashes() || o.strategy() != filter.strategy()
+				|| !sameHashing.test(filter, o)) {
+			throw new IllegalArgumentException(name + "s differ in size or hash functions");
+		}
+		return o;
+	}
+	
+	/**
+	 * Estimates how many distinct keys were added to a or b, from the bits set in their union. The
+	 * filters must be compatible as for union; neither is changed.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	static double estimateUnionSize(BloomFilter a, BloomFilter b) {
+		BloomFilter union = a.emptyCopy();
+		union.union(a);
+		union.union(b);
+		return union.estimateCardinality();
+	}
+	
+	/**
+	 * Estimates how many distinct keys were added to both a and b as |a| + |b| - |a union b|. This
+	 * is more accurate than estimating the bitwise intersection, whose bits include false overlaps.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	static double estimateIntersectionSize(BloomFilter a, BloomFilter b) {
+		return Math.max(0, a.estimateCardinality() + b.estimateCardinality() - estimateUnionSize(a, b));
+	}
+	
+	/**
+	 * Estimates the number of distinct keys in a filter of filterSize bits, bitsSet of them 1, filled
+	 * by numHashes hash functions (Swamidass and Baldi): n = -(m/k) ln(1 - X/m).
+	 * @param bitsSet - X
+	 * @param filterSize - m
+	 * @param numHashes - k
+	 * @return the estimate, or infinity when every bit is set
+	 */
+	static double estimateFromBits(long bitsSet, long filterSize, int numHashes) {
+		return -((double) filterSize / numHashes) * Math.log1p(-(double) bitsSet / filterSize);
+	}
+	
+	/**
+	 * Returns the false positive rate of a filter of filterSize bits and numHashes hash functions
+	 * holding n keys: (1 - e^(-kn/m))^k.
+	 * @param filterSize - m
+	 * @param numHashes - k
+	 * @param n
+	 * @return
+	 */
+	static double falsePositiveRate(long filterSize, int numHashes, double n) {
+		return Math.pow(-Math.expm1(-numHashes * n / filterSize), numHashes);
+	}
+	
+	/**
+	 * Adds every non-null key in keys to a filter whose probes are set by probes. Keys are hashed a
+	 * batch at a time and then probed one hash function at a time across the batch, so the cache
+	 * misses of different keys overlap.
+	 * @param strategy
+	 * @param keys
+	 * @param numHashes
+	 * @param probes
+	 * @return the number of keys added
+	 */
+	static int addBatch(HashStrategy strategy, String keys[], int numHashes, SetProbes probes) {
+		int added = 0;
+		long digests[] = new long[BATCH_SIZE];
+		for(int start = 0; start < keys.length; ) {
+			int n = 0;
+			for(; n < BATCH_SIZE && start < keys.length; start++) {
+				if(keys[start] != null) {
+					digests[n++] = strategy.hash(keys[start]);
+				}
+			}
+			for(int i = 0; i < numHashes; i++) {
+				probes.set(digests, n, i);
+			}
+			added += n;
+		}
+		return added;
+	}
+	
+	/**
+	 * Returns an array whose i-th entry is true if keys[i] appears in a filter whose probes are
+	 * tested by probes, computed batch-wise like addBatch.
+	 * @param strategy
+	 * @param keys
+	 * @param numHashes
+	 * @param probes
+	 * @return
+	 */
+	static boolean[] appearsBatch(HashStrategy strategy, String keys[], int numHashes, TestProbes probes) {
+		boolean results[] = new boolean[keys.length];
+		boolean found[] = new boolean[BATCH_SIZE];
+		long digests[] = new long[BATCH_SIZE];
+		for(int start = 0; start < keys.length; start += BATCH_SIZE) {
+			int n = Math.min(BATCH_SIZE, keys.length - start);
+			digestBatch(strategy, keys, start, n, digests);
+			for(int j = 0; j < n; j++) {
+				found[j] = keys[start + j] != null;
+			}
+			for(int i = 0; i < numHashes; i++) {
+				probes.test(digests, found, n, i);
+			}
+			System.arraycopy(found, 0, results, start, n);
+		}
+		return results;
+	}
+	
+	/**
+	 * Hashes keys[start] to keys[start + n - 1] into digests[0] to digests[n - 1]. Null keys are
+	 * left with a digest of 0; callers skip them.
+	 * @param strategy
+	 * @param keys
+	 * @param start
+	 * @param n
+	 * @param digests
+	 */
+	static void digestBatch(HashStrategy strategy, String keys[], int start, int n, long digests[]) {
+		for(int j = 0; j < n; j++) {
+			String key = keys[start + j];
+			digests[j] = key == null ? 0 : strategy.hash(key);
+		}
+	}
+	
+	/**
+	 * Gets the i-th probe position in [0, range) for a key digest by double hashing
+	 * (Kirsch-Mitzenmacher): the digest and its half-rotation act as two hash values h1 + i*h2,
+	 * so a single wide hash of the key serves every probe.
+	 * @param digest - 64-bit digest of the key from a HashStrategy
+	 * @param i - probe number
+	 * @param range - number of positions to choose from
+	 * @return position of the i-th probe
+	 */
+	static long probe(long digest, int i, long range) {
+		long h2 = Long.rotateLeft(digest, 32) | 1;
+		return Long.remainderUnsigned(digest + i * h2, range);
+	}
+}
@@ -1,4 +1,3 @@
-import java.util.BitSet;
 import java.math.BigInteger;
 
 /**
@@ -8,10 +7,12 @@ import java.math.BigInteger;
  * @author Brad Warren bawarren@iastate.edu
  *
  */
-public class BloomFilterFNV {
+public class BloomFilterFNV implements BloomFilter {
 	
-	private int filterSize, dataSize, numHashes;
-	private BitSet bFilter;
+	private long filterSize;
+	private int dataSize, numHashes;
+	private HashStrategy strategy;
+	private BitArray bFilter;
 	private BigInteger FNV_offset_basis = new BigInteger("14695981039346656037");
 	private long FNV_prime = Long.parseLong("1099511628211");
 
@@ -23,9 +24,49 @@ public class BloomFilterFNV {
 	 * @param bitsPerElement
 	 */
 	public BloomFilterFNV(int setSize, int bitsPerElement){
-		filterSize = setSize * bitsPerElement;
+		filterSize = (long) setSize * bitsPerElement;
 		numHashes = (int) Math.ceil(Math.log(2) * (filterSize/setSize));
-		bFilter = new BitSet(filterSize);
+		bFilter = new BitArray(filterSize);
+	}
+	
+	/**
+	 * Creates a Bloom filter like BloomFilterFNV(setSize, bitsPerElement). When doubleHashing is true
+	 * each key is hashed once with 64-bit FNV-1a and the k probe positions are derived from that
+	 * digest (Kirsch-Mitzenmacher), so add and appears allocate nothing per call.
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @param doubleHashing
+	 */
+	public BloomFilterFNV(int setSize, int bitsPerElement, boolean doubleHashing){
+		this(setSize, bitsPerElement, doubleHashing ? HashStrategy.FNV1A : null);
+	}
+	
+	/**
+	 * Creates a Bloom filter that hashes each key once with the given strategy and derives the k
+	 * probe positions from that digest. A null strategy keeps the original FNV rotate/reverse hashing.
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @param strategy
+	 */
+	public BloomFilterFNV(int setSize, int bitsPerElement, HashStrategy strategy){
+		this(setSize, bitsPerElement);
+		this.strategy = strategy;
+	}
+	
+	/**
+	 * Recreates a filter from the parameters and bits saved by BloomFilterFile.
+	 * @param filterSize
+	 * @param numHashes
+	 * @param dataSize
+	 * @param strategy
+	 * @param bFilter
+	 */
+	BloomFilterFNV(long filterSize, int numHashes, int dataSize, HashStrategy strategy, BitArray bFilter){
+		this.filterSize = filterSize;
+		this.numHashes = numHashes;
+		this.dataSize = dataSize;
+		this.strategy = strategy;
+		this.bFilter = bFilter;
 	}
 	
 	/**
@@ -38,15 +79,19 @@ public class BloomFilterFNV {
 		if(s == null) {
 			return;
 		}
+		if(strategy != null) {
+			addDigest(strategy.hash(s));
+			return;
+		}
 		//make string not case sensitive
 		String str = s.toLowerCase();
 		
-		int hash = 0;
+		long hash = 0;
 		for(int i = 0; i < numHashes; i++) {
 			if(i < numHashes/2) {
-				hash = (int) hashFNV(leftRotate(str,i));
+				hash = hashFNV(leftRotate(str,i));
 			}else {
-				hash = (int) hashFNV(leftRotate(reverse(str),i));
+				hash = hashFNV(leftRotate(reverse(str),i));
 			}
 			
 			bFilter.set(Math.abs(hash));
@@ -64,15 +109,18 @@ public class BloomFilterFNV {
 		if(s == null) {
 			return false;
 		}
+		if(strategy != null) {
+			return appearsDigest(strategy.hash(s));
+		}
 		//make string not case sensitive
 		String str = s.toLowerCase();
 		
-		int hash = 0;
+		long hash = 0;
 		for(int i = 0; i < numHashes; i++) {
 			if(i < numHashes/2) {
-				hash = (int) hashFNV(leftRotate(str,i));
+				hash = hashFNV(leftRotate(str,i));
 			}else {
-				hash = (int) hashFNV(leftRotate(reverse(str),i));
+				hash = hashFNV(leftRotate(reverse(str),i));
 			}
 			if(!bFilter.get(Math.abs(hash))) {
 				return false;
@@ -81,11 +129,71 @@ public class BloomFilterFNV {
 		return true;
 	}
 	
+	public void addDigest(long digest) {
+		bFilter.setProbes(digest, numHashes);
+		dataSize++;
+	}
+	
+	public boolean appearsDigest(long digest) {
+		return bFilter.getProbes(digest, numHashes);
+	}
+	
+	public void addAll(String keys[]) {
+		if(strategy == null) {
+			BloomFilter.super.addAll(keys);
+			return;
+		}
+		dataSize += BloomFilter.addBatch(strategy, keys, numHashes, (digests, n, i) -> {
+			for(int j = 0; j < n; j++) {
+				bFilter.set(BloomFilter.probe(digests[j], i, filterSize));
+			}
+		});
+	}
+	
+	public boolean[] appearsAll(String keys[]) {
+		if(strategy == null) {
+			return BloomFilter.super.appearsAll(keys);
+		}
+		return BloomFilter.appearsBatch(strategy, keys, numHashes, (digests, found, n, i) -> {
+			for(int j = 0; j < n; j++) {
+				found[j] = found[j] && bFilter.get(BloomFilter.probe(digests[j], i, filterSize));
+			}
+		});
+	}
+	
+	public boolean canMerge() {
+		return true;
+	}
+	
+	public void union(BloomFilter other) {
+		BloomFilterFNV o = BloomFilter.compatible(this, other);
+		bFilter.or(o.bFilter);
+		dataSize += o.dataSize;
+	}
+	
+	public BloomFilter emptyCopy() {
+		return new BloomFilterFNV(filterSize, numHashes, 0, strategy, new BitArray(filterSize));
+	}
+	
+	public void intersect(BloomFilter other) {
+		BloomFilterFNV o = BloomFilter.compatible(this, other);
+		bFilter.and(o.bFilter);
+		dataSize = Math.min(dataSize, o.dataSize);
+	}
+	
+	public boolean countsBits() {
+		return true;
+	}
+	
+	public long bitsSet() {
+		return bFilter.cardinality();
+	}
+	
 	/**
 	 * Returns the size of the filter.
 	 * @return
 	 */
-	public int filterSize() {
+	public long filterSize() {
 		return filterSize;
 	}
 	
@@ -105,6 +213,22 @@ public class BloomFilterFNV {
 		return numHashes;
 	}
 	
+	/**
+	 * Returns the hash strategy, or null for the original FNV rotate/reverse hashing.
+	 * @return
+	 */
+	public HashStrategy strategy() {
+		return strategy;
+	}
+	
+	/**
+	 * Returns the bits of the filter.
+	 * @return
+	 */
+	BitArray bits() {
+		return bFilter;
+	}
+	
 	/**
 	 * Method containing hash function FNV that takes a string and Hashes it.
 	 * @param s - string to be hashed
@@ -123,6 +247,16 @@ public class BloomFilterFNV {
 		return result;
 	}
 	
+	/**
+	 * 64-bit FNV-1a hash of s computed with plain long arithmetic. Characters are lowercased as they
+	 * are read and fed to the hash as UTF-8 bytes, so no intermediate strings are created.
+	 * @param s - string to be hashed
+	 * @return 64-bit digest of the lowercased string
+	 */
+	public static long hashFNV64(String s) {
+		return HashStrategy.FNV1A.hash(s);
+	}
+	
 	/**
 	 * Used to switch around hash function
 	 * @param s
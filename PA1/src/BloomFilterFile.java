@@ -0,0 +1,260 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 
+ * Versioned binary file format for BloomFilterFNV and BloomFilterRan, so a filter can be saved once
+ * and reopened without rehashing its keys. A file is a little-endian header followed by the raw bit
+ * words of the filter:
+ * 
+ * <pre>
+ * int    magic "BLMF"
+ * short  format version
+ * byte   filter type (1 BloomFilterFNV, 2 BloomFilterRan)
+ * byte   hash strategy (0 none, 1 FNV-1a, 2 Murmur3-128, 3 xxHash64)
+ * long   filterSize
+ * int    numHashes
+ * int    dataSize
+ * long   length of the file the keys were read from, -1 if none
+ * long   last modified time of that file
+ * int    number of a,b hash seed pairs, followed by the pairs
+ * ...    zero padding up to a multiple of 64 bytes
+ * long[] bit words
+ * </pre>
+ * 
+ * The padding keeps the words cache line aligned when the file is opened with mapFrom.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public final class BloomFilterFile {
+	
+	private static final int MAGIC = 0x464d4c42;
+	private static final short VERSION = 2;
+	private static final byte TYPE_FNV = 1, TYPE_RAN = 2;
+	private static final int FIXED_HEADER = 44;
+	
+	private BloomFilterFile() {
+	}
+	
+	/**
+	 * Writes filter to path. The file is written next to path and moved into place, so processes
+	 * that have the old file mapped keep a consistent view.
+	 * @param filter - a BloomFilterFNV or BloomFilterRan
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void save(BloomFilter filter, Path path) throws IOException {
+		save(filter, path, null);
+	}
+	
+	/**
+	 * Writes filter to path, recording the length and modification time of source, the file its keys
+	 * were read from, so mapFrom(path, source) can tell whether the filter is still current.
+	 * @param filter - a BloomFilterFNV or BloomFilterRan
+	 * @param path
+	 * @param source
+	 * @throws IOException
+	 */
+	public static void save(BloomFilter filter, Path path, File source) throws IOException {
+		byte type;
+		HashStrategy strategy;
+		int seeds[][];
+		BitArray bits;
+		if(filter instanceof BloomFilterFNV) {
+			BloomFilterFNV fnv = (BloomFilterFNV) filter;
+			type = TYPE_FNV;
+			strategy = fnv.strategy();
+			seeds = new int[0][];
+			bits = fnv.bits();
+		}else if(filter instanceof BloomFilterRan) {
+			BloomFilterRan ran = (BloomFilterRan) filter;
+			type = TYPE_RAN;
+			strategy = ran.strategy();
+			seeds = ran.abValues();
+			bits = ran.bits();
+		}else {
+			throw new IllegalArgumentException("cannot save a " + filter.getClass().getSimpleName());
+		}
+		
+		ByteBuffer header = ByteBuffer.allocate(headerSize(seeds.length)).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putShort(VERSION).put(type).put(strategyCode(strategy));
+		header.putLong(filter.filterSize()).putInt(filter.numHashes()).putInt(filter.dataSize());
+		header.putLong(source == null ? -1 : source.length()).putLong(source == null ? 0 : source.lastModified());
+		header.putInt(seeds.length);
+		for(int seed[] : seeds) {
+			header.putInt(seed[0]).putInt(seed[1]);
+		}
+		header.clear();
+		
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(header.hasRemaining()) {
+				channel.write(header);
+			}
+			bits.writeTo(channel);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Reads a filter saved by save into a new off-heap filter that can still be added to.
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static BloomFilter load(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return open(channel, null, null);
+		}
+	}
+	
+	/**
+	 * Opens a filter saved by save without copying it: the bit words are mapped straight from the
+	 * file, so opening costs the same for any filter size and several processes mapping the same
+	 * file share one copy in the OS page cache. The returned filter is read-only and add throws
+	 * java.nio.ReadOnlyBufferException.
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static BloomFilter mapFrom(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return open(channel, FileChannel.MapMode.READ_ONLY, null);
+		}
+	}
+	
+	/**
+	 * Opens a filter like mapFrom(path), but only when it was saved from the current version of
+	 * source: the length and modification time recorded by save(filter, path, source) must match.
+	 * @param path
+	 * @param source
+	 * @return the filter, or null when it was saved from another version of source or without one
+	 * @throws IOException
+	 */
+	public static BloomFilter mapFrom(Path path, File source) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return open(channel, FileChannel.MapMode.READ_ONLY, source);
+		}
+	}
+	
+	/**
+	 * Reads the header from channel and either maps the bit words with mode or, when mode is
+	 * null, reads them into a new BitArray. When source is not null, returns null instead unless
+	 * the filter was saved from the current version of source.
+	 * @param channel
+	 * @param mode
+	 * @param source
+	 * @return
+	 * @throws IOException
+	 */
+	private static BloomFilter open(FileChannel channel, FileChannel.MapMode mode, File source) throws IOException {
+		ByteBuffer fixed = read(channel, 0, FIXED_HEADER);
+		if(fixed.getInt() != MAGIC) {
+			throw new IOException("not a Bloom filter file");
+		}
+		short version = fixed.getShort();
+		if(version != VERSION) {
+			throw new IOException("unsupported Bloom filter file version " + version);
+		}
+		byte type = fixed.get();
+		HashStrategy strategy = strategyOf(fixed.get());
+		long filterSize = fixed.getLong();
+		int numHashes = fixed.getInt();
+		int dataSize = fixed.getInt();
+		long sourceLength = fixed.getLong();
+		long sourceModified = fixed.getLong();
+		int seedCount = fixed.getInt();
+		if(source != null && (sourceLength != source.length() || sourceModified != source.lastModified())) {
+			return null;
+		}
+		if(seedCount < 0 || seedCount > numHashes || filterSize < 0) {
+			throw new IOException("Bloom filter file corrupt");
+		}
+		
+		int seeds[][] = new int[seedCount][2];
+		ByteBuffer seedBytes = read(channel, FIXED_HEADER, seedCount * 8);
+		for(int seed[] : seeds) {
+			seed[0] = seedBytes.getInt();
+			seed[1] = seedBytes.getInt();
+		}
+		
+		long wordsAt = headerSize(seedCount);
+		if(channel.size() < wordsAt + (((filterSize + 63) >>> 6) << 3)) {
+			throw new IOException("Bloom filter file truncated");
+		}
+		BitArray bits;
+		if(mode != null) {
+			bits = BitArray.map(channel, wordsAt, filterSize, mode);
+		}else {
+			bits = new BitArray(filterSize);
+			channel.position(wordsAt);
+			bits.readFrom(channel);
+		}
+		
+		if(type == TYPE_FNV) {
+			return new BloomFilterFNV(filterSize, numHashes, dataSize, strategy, bits);
+		}else if(type == TYPE_RAN) {
+			return new BloomFilterRan(filterSize, numHashes, dataSize, strategy, seeds, bits);
+		}
+		throw new IOException("unknown Bloom filter type " + type);
+	}
+	
+	/**
+	 * Reads length bytes at position into a little-endian buffer ready to be read.
+	 * @param channel
+	 * @param position
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while(buf.hasRemaining()) {
+			if(channel.read(buf, position + buf.position()) < 0) {
+				throw new IOException("Bloom filter file truncated");
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+	
+	/**
+	 * Returns the header length for seedCount seed pairs, rounded up to a multiple of 64.
+	 * @param seedCount
+	 * @return
+	 */
+	private static int headerSize(int seedCount) {
+		return (FIXED_HEADER + seedCount * 8 + 63) & ~63;
+	}
+	
+	private static byte strategyCode(HashStrategy strategy) {
+		if(strategy == null) {
+			return 0;
+		}else if(strategy == HashStrategy.FNV1A) {
+			return 1;
+		}else if(strategy == HashStrategy.MURMUR3) {
+			return 2;
+		}else if(strategy == HashStrategy.XXHASH64) {
+			return 3;
+		}
+		throw new IllegalArgumentException("only the built-in hash strategies can be saved");
+	}
+	
+	private static HashStrategy strategyOf(byte code) throws IOException {
+		switch(code) {
+			case 0: return null;
+			case 1: return HashStrategy.FNV1A;
+			case 2: return HashStrategy.MURMUR3;
+			case 3: return HashStrategy.XXHASH64;
+			default: throw new IOException("unknown hash strategy " + code);
+		}
+	}
+}
@@ -1,4 +1,4 @@
-import java.util.BitSet;
+import java.util.Arrays;
 import java.util.Random;
 
 
@@ -10,12 +10,14 @@ import java.util.Random;
  * @author Brad Warren bawarren@iastate.edu
  *
  */
-public class BloomFilterRan {
+public class BloomFilterRan implements BloomFilter {
 	
-	private int filterSize, dataSize, numHashes;
-	private BitSet bFilter;
+	private long filterSize;
+	private int dataSize, numHashes;
+	private BitArray bFilter;
 	private int abValues[][];
 	private Random rand = new Random(100000000);
+	private HashStrategy strategy;
 	
 	/**
 	 * creates a Bloom filter with one table and k hash functions of my choice. 
@@ -23,14 +25,57 @@ public class BloomFilterRan {
 	 * @param bitsPerElement
 	 */
 	public BloomFilterRan(int setSize, int bitsPerElement){
-		filterSize = setSize * bitsPerElement;
-		numHashes = (int) Math.ceil(Math.log(2) * (filterSize/setSize));
-		filterSize = primeOverM(filterSize);
-		bFilter = new BitSet(filterSize);
+		this(setSize, bitsPerElement, null);
+	}
+	
+	/**
+	 * creates a Bloom filter with one table whose k hash functions are derived from a single 64-bit
+	 * digest of the key computed by strategy. A null strategy keeps the random a*h+b hash functions,
+	 * which can only address an int sized table; with a strategy the filter may exceed 2^31 bits.
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @param strategy
+	 */
+	public BloomFilterRan(int setSize, int bitsPerElement, HashStrategy strategy){
+		this(FilterSizing.forBitsPerElement(setSize, bitsPerElement), strategy);
+	}
+	
+	/**
+	 * creates a Bloom filter with one table of size.bits() bits and size.numHashes() hash functions,
+	 * such as a filter sized for a false positive rate by FilterSizing.forFalsePositiveRate.
+	 * @param size
+	 * @param strategy
+	 */
+	public BloomFilterRan(FilterSizing size, HashStrategy strategy){
+		this.strategy = strategy;
+		filterSize = size.bits();
+		numHashes = size.numHashes();
+		if(strategy == null && filterSize >= Integer.MAX_VALUE / 2) {
+			throw new IllegalArgumentException("a filter of " + filterSize + " bits needs a HashStrategy");
+		}
+		bFilter = new BitArray(filterSize);
 		abValues = new int[numHashes][2];
 		setHashes();
 	}
 	
+	/**
+	 * Recreates a filter from the parameters and bits saved by BloomFilterFile.
+	 * @param filterSize
+	 * @param numHashes
+	 * @param dataSize
+	 * @param strategy
+	 * @param abValues
+	 * @param bFilter
+	 */
+	BloomFilterRan(long filterSize, int numHashes, int dataSize, HashStrategy strategy, int abValues[][], BitArray bFilter){
+		this.filterSize = filterSize;
+		this.numHashes = numHashes;
+		this.dataSize = dataSize;
+		this.strategy = strategy;
+		this.abValues = abValues;
+		this.bFilter = bFilter;
+	}
+	
 	/**
 	 * Adds  the  strings to  the  filter.   Type  of  this  method  is  void.   
 	 * This  method should be case-insensitive.  For example, it should not distinguish between “Galaxy” 
@@ -41,6 +86,10 @@ public class BloomFilterRan {
 		if(s == null) {
 			return;
 		}
+		if(strategy != null) {
+			addDigest(strategy.hash(s));
+			return;
+		}
 		//make string not case sensitive
 		String str = s.toLowerCase();
 		
@@ -49,6 +98,7 @@ public class BloomFilterRan {
 			hash = hash(str,i);
 			bFilter.set(Math.abs(hash));
 		}
+		dataSize++;
 	}
 	
 	/**
@@ -61,6 +111,9 @@ public class BloomFilterRan {
 		if(s == null) {
 			return false;
 		}
+		if(strategy != null) {
+			return appearsDigest(strategy.hash(s));
+		}
 		//make string not case sensitive
 		String str = s.toLowerCase();
 		
@@ -75,11 +128,75 @@ public class BloomFilterRan {
 		return true;
 	}
 	
+	public void addDigest(long digest) {
+		bFilter.setProbes(digest, numHashes);
+		dataSize++;
+	}
+	
+	public boolean appearsDigest(long digest) {
+		return bFilter.getProbes(digest, numHashes);
+	}
+	
+	public void addAll(String keys[]) {
+		if(strategy == null) {
+			BloomFilter.super.addAll(keys);
+			return;
+		}
+		dataSize += BloomFilter.addBatch(strategy, keys, numHashes, (digests, n, i) -> {
+			for(int j = 0; j < n; j++) {
+				bFilter.set(BloomFilter.probe(digests[j], i, filterSize));
+			}
+		});
+	}
+	
+	public boolean[] appearsAll(String keys[]) {
+		if(strategy == null) {
+			return BloomFilter.super.appearsAll(keys);
+		}
+		return BloomFilter.appearsBatch(strategy, keys, numHashes, (digests, found, n, i) -> {
+			for(int j = 0; j < n; j++) {
+				found[j] = found[j] && bFilter.get(BloomFilter.probe(digests[j], i, filterSize));
+			}
+		});
+	}
+	
+	public boolean canMerge() {
+		return true;
+	}
+	
+	public void union(BloomFilter other) {
+		BloomFilterRan o = compatible(other);
+		bFilter.or(o.bFilter);
+		dataSize += o.dataSize;
+	}
+	
+	public BloomFilter emptyCopy() {
+		return new BloomFilterRan(filterSize, numHashes, 0, strategy, abValues, new BitArray(filterSize));
+	}
+	
+	public void intersect(BloomFilter other) {
+		BloomFilterRan o = compatible(other);
+		bFilter.and(o.bFilter);
+		dataSize = Math.min(dataSize, o.dataSize);
+	}
+	
+	public boolean countsBits() {
+		return true;
+	}
+	
+	public long bitsSet() {
+		return bFilter.cardinality();
+	}
+	
+	private BloomFilterRan compatible(BloomFilter other) {
+		return BloomFilter.compatible(this, other, (a, b) -> Arrays.deepEquals(a.abValues, b.abValues));
+	}
+	
 	/**
 	 * Returns the size of the filter.
 	 * @return
 	 */
-	public int filterSize() {
+	public long filterSize() {
 		return filterSize;
 	}
 	
@@ -100,27 +217,55 @@ public class BloomFilterRan {
 	}
 	
 	/**
-	 * Gets the next prime higher than n. Used to increase filterSize to out prime selection.
+	 * Returns the hash strategy, or null for the random a*h+b hash functions.
+	 * @return
+	 */
+	public HashStrategy strategy() {
+		return strategy;
+	}
+	
+	/**
+	 * Returns the a and b values of the random hash functions.
+	 * @return
+	 */
+	int[][] abValues() {
+		return abValues;
+	}
+	
+	/**
+	 * Returns the bits of the filter.
+	 * @return
+	 */
+	BitArray bits() {
+		return bFilter;
+	}
+	
+	/**
+	 * Zeroes up to count words of the bits starting at word from, so a large filter can be emptied a
+	 * little at a time. Clearing from word 0 also resets the key count.
+	 * @param from
+	 * @param count
+	 * @return the word after the last one cleared
+	 */
+	long clearWords(long from, long count) {
+		if(from == 0) {
+			dataSize = 0;
+		}
+		long to = Math.min(bFilter.wordCount(), from + count);
+		for(long w = from; w < to; w++) {
+			bFilter.setWord(w, 0);
+		}
+		return to;
+	}
+	
+	/**
+	 * Gets the next prime higher than n. Used to increase filterSize to out prime selection. Found
+	 * with FilterSizing.nextPrime.
 	 * @param n
 	 * @return
 	 */
 	public int primeOverM(int n) {
-		
-		int nextPrime = 0;
-		
-		for(int i = n + 1; i < n * 2; i++) {
-			for(int j = 2; j < i/2; j++) {
-				if(i % j == 0) {
-					break;
-				}else if(j == (i/2)-1) {
-					nextPrime = i;
-				}
-			}
-			if(nextPrime != 0) {
-				return nextPrime;
-			}
-		}
-	    return nextPrime;
+		return Math.toIntExact(FilterSizing.nextPrime(n));
 	}
 	
 	/**
@@ -139,6 +284,6 @@ public class BloomFilterRan {
 	 * @return
 	 */
 	public int hash(String s, int i) {
-		return ((abValues[i][0]*s.hashCode()+abValues[i][1])%filterSize);
+		return (int) ((abValues[i][0]*s.hashCode()+abValues[i][1])%filterSize);
 	}
 }
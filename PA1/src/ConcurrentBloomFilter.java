@@ -0,0 +1,170 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 
+ * Thread-safe variant of BloomFilterRan. Bits live in a BitArray updated with atomic OR on 64-bit
+ * words, so add is lock-free and appears is wait-free from any number of threads, and the element
+ * count is a LongAdder so writers do not contend on a single counter.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class ConcurrentBloomFilter implements BloomFilter {
+	
+	private long filterSize;
+	private int numHashes;
+	private BitArray bFilter;
+	private HashStrategy strategy;
+	private LongAdder dataSize = new LongAdder();
+	
+	/**
+	 * Creates a concurrent Bloom filter with one table and k hash functions derived from a
+	 * Murmur3-128 digest of each key.
+	 * @param setSize
+	 * @param bitsPerElement
+	 */
+	public ConcurrentBloomFilter(int setSize, int bitsPerElement){
+		this(setSize, bitsPerElement, HashStrategy.MURMUR3);
+	}
+	
+	/**
+	 * Creates a concurrent Bloom filter with one table and k hash functions derived from a single
+	 * digest of each key computed by strategy.
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @param strategy
+	 */
+	public ConcurrentBloomFilter(int setSize, int bitsPerElement, HashStrategy strategy){
+		this((long) setSize * bitsPerElement, (int) Math.ceil(Math.log(2) * bitsPerElement), strategy);
+	}
+	
+	/**
+	 * Creates an empty concurrent Bloom filter of filterSize bits with numHashes hash functions.
+	 * @param filterSize
+	 * @param numHashes
+	 * @param strategy
+	 */
+	private ConcurrentBloomFilter(long filterSize, int numHashes, HashStrategy strategy){
+		this.strategy = strategy;
+		this.filterSize = filterSize;
+		this.numHashes = numHashes;
+		bFilter = new BitArray(filterSize);
+	}
+	
+	/**
+	 * Adds the string to the filter. Safe to call concurrently with add and appears. This method
+	 * should be case-insensitive.
+	 * @param s
+	 */
+	public void add(String s) {
+		if(s == null) {
+			return;
+		}
+		addDigest(strategy.hash(s));
+	}
+	
+	/**
+	 * Returns true if s appears in the filter; otherwise returns false. A key whose add has
+	 * returned in any thread is always reported. This method must also be case-insensitive.
+	 * @param s
+	 * @return
+	 */
+	public boolean appears(String s) {
+		if(s == null) {
+			return false;
+		}
+		return appearsDigest(strategy.hash(s));
+	}
+	
+	public HashStrategy strategy() {
+		return strategy;
+	}
+	
+	public void addDigest(long digest) {
+		bFilter.setProbesAtomic(digest, numHashes);
+		dataSize.increment();
+	}
+	
+	public boolean appearsDigest(long digest) {
+		return bFilter.getProbesAtomic(digest, numHashes);
+	}
+	
+	public void addAll(String keys[]) {
+		dataSize.add(BloomFilter.addBatch(strategy, keys, numHashes, (digests, n, i) -> {
+			for(int j = 0; j < n; j++) {
+				bFilter.setAtomic(BloomFilter.probe(digests[j], i, filterSize));
+			}
+		}));
+	}
+	
+	public boolean[] appearsAll(String keys[]) {
+		return BloomFilter.appearsBatch(strategy, keys, numHashes, (digests, found, n, i) -> {
+			for(int j = 0; j < n; j++) {
+				found[j] = found[j] && bFilter.getAtomic(BloomFilter.probe(digests[j], i, filterSize));
+			}
+		});
+	}
+	
+	public boolean canMerge() {
+		return true;
+	}
+	
+	/**
+	 * ORs the bits of other into this filter. Not atomic: keys added to either filter during the
+	 * union may be missed.
+	 * @param other
+	 */
+	public void union(BloomFilter other) {
+		ConcurrentBloomFilter o = BloomFilter.compatible(this, other);
+		bFilter.or(o.bFilter);
+		dataSize.add(o.dataSize.sum());
+	}
+	
+	public BloomFilter emptyCopy() {
+		return new ConcurrentBloomFilter(filterSize, numHashes, strategy);
+	}
+	
+	/**
+	 * ANDs the bits of other into this filter. Not atomic, like union.
+	 * @param other
+	 */
+	public void intersect(BloomFilter other) {
+		ConcurrentBloomFilter o = BloomFilter.compatible(this, other);
+		bFilter.and(o.bFilter);
+		long size = Math.min(dataSize.sum(), o.dataSize.sum());
+		dataSize.reset();
+		dataSize.add(size);
+	}
+	
+	public boolean countsBits() {
+		return true;
+	}
+	
+	public long bitsSet() {
+		return bFilter.cardinality();
+	}
+	
+	/**
+	 * Returns the size of the filter.
+	 * @return
+	 */
+	public long filterSize() {
+		return filterSize;
+	}
+	
+	/**
+	 * Returns the number of elements added to the filter.
+	 * @return
+	 */
+	public int dataSize() {
+		return dataSize.intValue();
+	}
+
+	/**
+	 * Returns the number of hash function used.
+	 * @return
+	 */
+	public int numHashes() {
+		return numHashes;
+	}
+}
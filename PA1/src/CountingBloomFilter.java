@@ -0,0 +1,229 @@
+/**
+ * 
+ * Counting Bloom filter: every position holds a 4-bit counter instead of a bit, sixteen counters
+ * packed into each long, so keys can be removed as well as added. A counter that reaches 15 sticks
+ * there and is never decremented again, which keeps remove from creating false negatives when
+ * more than 15 keys share a position.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class CountingBloomFilter implements BloomFilter {
+	
+	private static final long MAX_COUNT = 15;
+	
+	private long filterSize;
+	private int dataSize, numHashes;
+	private long counters[];
+	private HashStrategy strategy;
+	
+	/**
+	 * Creates a counting Bloom filter with setSize * bitsPerElement counters, hashing keys with
+	 * Murmur3-128.
+	 * @param setSize
+	 * @param bitsPerElement
+	 */
+	public CountingBloomFilter(int setSize, int bitsPerElement){
+		this(setSize, bitsPerElement, HashStrategy.MURMUR3);
+	}
+	
+	/**
+	 * Creates a counting Bloom filter with setSize * bitsPerElement counters whose k probes are
+	 * derived from a single digest of each key computed by strategy.
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @param strategy
+	 */
+	public CountingBloomFilter(int setSize, int bitsPerElement, HashStrategy strategy){
+		this((long) setSize * bitsPerElement, (int) Math.ceil(Math.log(2) * bitsPerElement), strategy);
+	}
+	
+	/**
+	 * Creates an empty counting Bloom filter of filterSize counters with numHashes hash functions.
+	 * @param filterSize
+	 * @param numHashes
+	 * @param strategy
+	 */
+	private CountingBloomFilter(long filterSize, int numHashes, HashStrategy strategy){
+		if(filterSize <= 0) {
+			throw new IllegalArgumentException("filterSize must be positive: " + filterSize);
+		}
+		this.strategy = strategy;
+		this.filterSize = filterSize;
+		this.numHashes = numHashes;
+		counters = new long[(int) ((filterSize + 15) >>> 4)];
+	}
+	
+	/**
+	 * Adds the string to the filter by incrementing its k counters. This method should be
+	 * case-insensitive.
+	 * @param s
+	 */
+	public void add(String s) {
+		if(s == null) {
+			return;
+		}
+		addDigest(strategy.hash(s));
+	}
+	
+	/**
+	 * Removes the string from the filter by decrementing its k counters. Nothing is changed when s
+	 * does not appear, but a false positive does appear: only remove keys known to have been added,
+	 * once per add, since decrementing the counters of any other key removes other keys. This method
+	 * should be case-insensitive.
+	 * @param s
+	 * @return true if s appeared and was removed
+	 */
+	public boolean remove(String s) {
+		if(!appears(s)) {
+			return false;
+		}
+		long digest = strategy.hash(s);
+		for(int i = 0; i < numHashes; i++) {
+			long pos = BloomFilter.probe(digest, i, filterSize);
+			long c = count(pos);
+			//saturated counters have lost track of how many keys they hold
+			if(c > 0 && c < MAX_COUNT) {
+				counters[(int) (pos >>> 4)] -= 1L << ((pos & 15) << 2);
+			}
+		}
+		dataSize--;
+		return true;
+	}
+	
+	/**
+	 * Returns true if s appears in the filter; otherwise returns false. This method 
+	 * must also be case-insensitive.
+	 * @param s
+	 * @return
+	 */
+	public boolean appears(String s) {
+		if(s == null) {
+			return false;
+		}
+		return appearsDigest(strategy.hash(s));
+	}
+	
+	public HashStrategy strategy() {
+		return strategy;
+	}
+	
+	/**
+	 * Increments the k counters of a key digest.
+	 * @param digest
+	 */
+	public void addDigest(long digest) {
+		for(int i = 0; i < numHashes; i++) {
+			long pos = BloomFilter.probe(digest, i, filterSize);
+			if(count(pos) < MAX_COUNT) {
+				counters[(int) (pos >>> 4)] += 1L << ((pos & 15) << 2);
+			}
+		}
+		dataSize++;
+	}
+	
+	/**
+	 * Returns true if all k counters of a key digest are non-zero.
+	 * @param digest
+	 * @return
+	 */
+	public boolean appearsDigest(long digest) {
+		for(int i = 0; i < numHashes; i++) {
+			if(count(BloomFilter.probe(digest, i, filterSize)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the value of the counter at pos.
+	 * @param pos
+	 * @return
+	 */
+	private long count(long pos) {
+		return (counters[(int) (pos >>> 4)] >>> ((pos & 15) << 2)) & MAX_COUNT;
+	}
+	
+	public boolean canMerge() {
+		return true;
+	}
+	
+	/**
+	 * Adds the counters of other to this filter's. Sums saturate at 15 like add.
+	 * @param other
+	 */
+	public void union(BloomFilter other) {
+		CountingBloomFilter o = BloomFilter.compatible(this, other);
+		for(int w = 0; w < counters.length; w++) {
+			long a = counters[w], b = o.counters[w], sum = 0;
+			for(int shift = 0; shift < 64; shift += 4) {
+				sum |= Math.min(MAX_COUNT, ((a >>> shift) & MAX_COUNT) + ((b >>> shift) & MAX_COUNT)) << shift;
+			}
+			counters[w] = sum;
+		}
+		dataSize += o.dataSize;
+	}
+	
+	public BloomFilter emptyCopy() {
+		return new CountingBloomFilter(filterSize, numHashes, strategy);
+	}
+	
+	/**
+	 * Lowers each counter to the smaller of it and other's counter.
+	 * @param other
+	 */
+	public void intersect(BloomFilter other) {
+		CountingBloomFilter o = BloomFilter.compatible(this, other);
+		for(int w = 0; w < counters.length; w++) {
+			long a = counters[w], b = o.counters[w], min = 0;
+			for(int shift = 0; shift < 64; shift += 4) {
+				min |= Math.min((a >>> shift) & MAX_COUNT, (b >>> shift) & MAX_COUNT) << shift;
+			}
+			counters[w] = min;
+		}
+		dataSize = Math.min(dataSize, o.dataSize);
+	}
+	
+	public boolean countsBits() {
+		return true;
+	}
+	
+	/**
+	 * Returns the number of non-zero counters.
+	 * @return
+	 */
+	public long bitsSet() {
+		long nonZero = 0;
+		for(long pos = 0; pos < filterSize; pos++) {
+			if(count(pos) != 0) {
+				nonZero++;
+			}
+		}
+		return nonZero;
+	}
+	
+	/**
+	 * Returns the size of the filter.
+	 * @return
+	 */
+	public long filterSize() {
+		return filterSize;
+	}
+	
+	/**
+	 * Returns the number of elements added to the filter.
+	 * @return
+	 */
+	public int dataSize() {
+		return dataSize;
+	}
+
+	/**
+	 * Returns the number of hash function used.
+	 * @return
+	 */
+	public int numHashes() {
+		return numHashes;
+	}
+}
@@ -1,4 +1,5 @@
 import java.io.FileNotFoundException;
+import java.util.Arrays;
 
 /**
  * Class used to empirically compare BloomDifferential and NaiveDifferential.
@@ -57,6 +58,12 @@ public class EmpericalComparison {
 		endTime = System.nanoTime();
 		long bDifOutBloomTime = (endTime - startTime)/1000000;
 		
+		//time takes to get all keys in one batch for bloomDifferential
+		startTime = System.nanoTime();
+		bDif.retrieveRecords(Arrays.asList(keys));
+		endTime = System.nanoTime();
+		long bDifBatchTime = (endTime - startTime)/1000000;
+		
 		
 		//time takes to get keys from files for naiveDifferential
 		startTime = System.nanoTime();
@@ -81,10 +88,14 @@ public class EmpericalComparison {
 		System.out.println("NaiveDifferential find 3 record in DiffFile.txt time: " + nDifInBloomTime + " ms\n");
 
 		System.out.println("BloomDifferential find 2nd to last record in database.txt time: " + bDifOutBloomTime + " ms");
-		System.out.println("NaiveDifferential find 2nd to last record in database.txt time: " + nDifOutBloomTime + " ms\n\n");
+		System.out.println("NaiveDifferential find 2nd to last record in database.txt time: " + nDifOutBloomTime + " ms\n");
+		
+		System.out.println("BloomDifferential find all 4 records in one batch time: " + bDifBatchTime + " ms\n\n");
 		
 		System.out.println("Memory comparison:");
 		System.out.println("BloomDifferential memory usage: " + bDifMemory/(1024*1024) + " mb");
 		System.out.println("NaiveDifferential memory usage: " + nDifMemory/(1024*1024)+ " mb");
+		System.out.println("BloomDifferential filter size: " + bDif.getFilter().filterSize()/(8*1024) + " kb");
+		System.out.println("NaiveDifferential key set size: " + nDif.getKeySet().memoryBytes()/1024 + " kb");
 	}
 }
@@ -0,0 +1,196 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 
+ * Exact set of record keys for NaiveDifferential. The UTF-8 bytes of every key are packed one
+ * after another into a single byte array, each preceded by its length, and an open addressing table
+ * of int offsets into that array finds them by hash with linear probing. A 32-bit hash tag kept next
+ * to each offset rules out almost every wrong slot without touching the key bytes, so a lookup
+ * usually costs one hash, one table probe and one comparison. Apart from the arena and the two int
+ * arrays there are no objects per key.
+ * 
+ * Keys are compared byte for byte, so unlike the Bloom filters this set is case-sensitive, as are
+ * the record files. The arena starts small and doubles as keys are added, up to 2 GiB of keys, and
+ * the table holds up to 2^29 keys.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class ExactKeySet {
+	
+	private static final HashStrategy HASH = HashStrategy.XXHASH64;
+	private static final int MAX_CAPACITY = 1 << 30;
+	
+	private byte arena[];
+	private int arenaSize, size;
+	private int slotOffsets[], slotTags[];
+	
+	/**
+	 * Creates an empty set whose table is sized for expectedSize keys. The arena grows with the keys
+	 * actually added.
+	 * @param expectedSize
+	 */
+	public ExactKeySet(int expectedSize) {
+		long wanted = Math.max(16, 2L * expectedSize);
+		int capacity = wanted >= MAX_CAPACITY ? MAX_CAPACITY : Integer.highestOneBit((int) wanted - 1) << 1;
+		slotOffsets = new int[capacity];
+		slotTags = new int[capacity];
+		arena = new byte[256];
+	}
+	
+	/**
+	 * Adds key to the set.
+	 * @param key
+	 * @return true if key was not already in the set
+	 */
+	public boolean add(String key) {
+		byte bytes[] = key.getBytes(StandardCharsets.UTF_8);
+		return add(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Adds the key held in len bytes of buf starting at off as UTF-8. The bytes are copied.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return true if the key was not already in the set
+	 */
+	public boolean add(byte buf[], int off, int len) {
+		long hash = HASH.hash(buf, off, len);
+		int slot = find(buf, off, len, hash);
+		if(slotOffsets[slot] != 0) {
+			return false;
+		}
+		if(size >= MAX_CAPACITY / 2) {
+			throw new IllegalStateException("ExactKeySet holds at most " + MAX_CAPACITY / 2 + " keys");
+		}
+		slotOffsets[slot] = append(buf, off, len) + 1;
+		slotTags[slot] = (int) (hash >>> 32);
+		size++;
+		if(size > slotOffsets.length / 2 && slotOffsets.length < MAX_CAPACITY) {
+			resize();
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns true if key is in the set.
+	 * @param key
+	 * @return
+	 */
+	public boolean contains(String key) {
+		byte bytes[] = key.getBytes(StandardCharsets.UTF_8);
+		return slotOffsets[find(bytes, 0, bytes.length, HASH.hash(bytes, 0, bytes.length))] != 0;
+	}
+	
+	/**
+	 * Returns the number of keys in the set.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the bytes used by the keys in the arena and by the table, not counting arena space not
+	 * yet filled.
+	 * @return
+	 */
+	public long memoryBytes() {
+		return arenaSize + slotOffsets.length * 8L;
+	}
+	
+	/**
+	 * Returns the slot holding the key in buf, or the empty slot where it would go.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @param hash
+	 * @return
+	 */
+	private int find(byte buf[], int off, int len, long hash) {
+		int mask = slotOffsets.length - 1, tag = (int) (hash >>> 32);
+		int slot = (int) hash & mask;
+		while(slotOffsets[slot] != 0) {
+			if(slotTags[slot] == tag && matches(slotOffsets[slot] - 1, buf, off, len)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Returns true if the key stored at offset in the arena is the key in buf.
+	 * @param offset
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	private boolean matches(int offset, byte buf[], int off, int len) {
+		int length = 0, shift = 0;
+		byte b;
+		do {
+			b = arena[offset++];
+			length |= (b & 0x7f) << shift;
+			shift += 7;
+		}while(b < 0);
+		return length == len && Arrays.equals(arena, offset, offset + length, buf, off, off + len);
+	}
+	
+	/**
+	 * Copies the key in buf to the end of the arena after its length as a varint.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return the offset of the stored key
+	 */
+	private int append(byte buf[], int off, int len) {
+		long needed = (long) arenaSize + len + 5;
+		if(needed > arena.length) {
+			if(needed > Integer.MAX_VALUE - 8) {
+				throw new IllegalStateException("ExactKeySet holds at most 2 GiB of keys");
+			}
+			arena = Arrays.copyOf(arena, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, arena.length * 2L)));
+		}
+		int offset = arenaSize;
+		int length = len;
+		while(length >= 0x80) {
+			arena[arenaSize++] = (byte) (length | 0x80);
+			length >>>= 7;
+		}
+		arena[arenaSize++] = (byte) length;
+		System.arraycopy(buf, off, arena, arenaSize, len);
+		arenaSize += len;
+		return offset;
+	}
+	
+	/**
+	 * Doubles the table, placing every key again by the hash of its bytes in the arena.
+	 */
+	private void resize() {
+		int oldOffsets[] = slotOffsets, oldTags[] = slotTags;
+		slotOffsets = new int[oldOffsets.length * 2];
+		slotTags = new int[oldTags.length * 2];
+		int mask = slotOffsets.length - 1;
+		for(int i = 0; i < oldOffsets.length; i++) {
+			if(oldOffsets[i] != 0) {
+				int start = oldOffsets[i] - 1, length = 0, shift = 0;
+				byte b;
+				do {
+					b = arena[start++];
+					length |= (b & 0x7f) << shift;
+					shift += 7;
+				}while(b < 0);
+				int slot = (int) HASH.hash(arena, start, length) & mask;
+				while(slotOffsets[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				slotOffsets[slot] = oldOffsets[i];
+				slotTags[slot] = oldTags[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * 
+ * 64-bit FNV-1a hash strategy. FNV consumes one byte at a time, so String keys are lowercased and
+ * UTF-8 encoded inline instead of going through a scratch buffer.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class FNV1aHashStrategy implements HashStrategy {
+	
+	private static final long FNV64_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV64_PRIME = 0x100000001b3L;
+
+	@Override
+	public long hashFolded(byte[] buf, int off, int len) {
+		long x = FNV64_OFFSET_BASIS;
+		for(int i = off; i < off + len; i++) {
+			x = (x ^ KeyBytes.fold(buf[i])) * FNV64_PRIME;
+		}
+		return x;
+	}
+	
+	@Override
+	public long hash(String s) {
+		long x = FNV64_OFFSET_BASIS;
+		for(int i = 0; i < s.length(); i++) {
+			char c = Character.toLowerCase(s.charAt(i));
+			if(c < 0x80) {
+				x = (x ^ c) * FNV64_PRIME;
+			}else if(c < 0x800) {
+				x = (x ^ (0xc0 | (c >> 6))) * FNV64_PRIME;
+				x = (x ^ (0x80 | (c & 0x3f))) * FNV64_PRIME;
+			}else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toLowerCase(Character.toCodePoint(c, s.charAt(++i)));
+				x = (x ^ (0xf0 | (cp >> 18))) * FNV64_PRIME;
+				x = (x ^ (0x80 | ((cp >> 12) & 0x3f))) * FNV64_PRIME;
+				x = (x ^ (0x80 | ((cp >> 6) & 0x3f))) * FNV64_PRIME;
+				x = (x ^ (0x80 | (cp & 0x3f))) * FNV64_PRIME;
+			}else {
+				x = (x ^ (0xe0 | (c >> 12))) * FNV64_PRIME;
+				x = (x ^ (0x80 | ((c >> 6) & 0x3f))) * FNV64_PRIME;
+				x = (x ^ (0x80 | (c & 0x3f))) * FNV64_PRIME;
+			}
+		}
+		return x;
+	}
+	
+	@Override
+	public String toString() {
+		return "FNV-1a";
+	}
+}
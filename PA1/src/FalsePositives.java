@@ -1,5 +1,7 @@
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.UUID;
 
@@ -16,6 +18,7 @@ import java.util.UUID;
  */
 public class FalsePositives {
 
+	private static final String NON_ASCII_WORDS[] = {"Émile Zola", "ÇA VA", "ΣΟΦΙΑ", "Ñandú", "ZÜRICH", "Крым", "東京"};
 	private static String inBloom[], outBloom[];
 	private static URL url;	
 	
@@ -27,39 +30,24 @@ public class FalsePositives {
 	 */
 	public static void test(int numberOfStrings,int n) {
 		//initialize Bloom filters
-		BloomFilterFNV fnv = new BloomFilterFNV(numberOfStrings, n);
-		BloomFilterRan ran = new BloomFilterRan(numberOfStrings, n);
-		MultiMultiBloomFilter multi = new MultiMultiBloomFilter(numberOfStrings, n);
-		NaiveBloomFilter naive = new NaiveBloomFilter(numberOfStrings, n);
+		BloomFilter fnv = new BloomFilterFNV(numberOfStrings, n);
+		BloomFilter ran = new BloomFilterRan(numberOfStrings, n);
+		BloomFilter multi = new MultiMultiBloomFilter(numberOfStrings, n);
+		BloomFilter naive = new NaiveBloomFilter(numberOfStrings, n);
 		//values for number of false positives
 		double fnvFalse = 0, ranFalse = 0, multiFalse = 0, naiveFalse = 0;
 		
-		//add first inBloom words to Bloom filters
-		for(String word : inBloom) {
-			fnv.add(word);
-			ran.add(word);
-			multi.add(word);
-			naive.add(word);
-		}
+		//add first inBloom words to Bloom filters, each filled by all worker threads
+		ParallelBloomBuilder.build(fnv, inBloom);
+		ParallelBloomBuilder.build(ran, inBloom);
+		ParallelBloomBuilder.build(multi, inBloom);
+		ParallelBloomBuilder.build(naive, inBloom);
 		
 		//check if false outBloom words cause false positive
-		for(String word : outBloom) {
-			if(fnv.appears(word)) {
-				fnvFalse++;
-			}
-			
-			if(ran.appears(word)) {
-				ranFalse++;
-			}
-			
-			if(multi.appears(word)) {
-				multiFalse++;
-			}
-			
-			if(naive.appears(word)) {
-				naiveFalse++;
-			}
-		}
+		fnvFalse = countTrue(fnv.appearsAll(outBloom));
+		ranFalse = countTrue(ran.appearsAll(outBloom));
+		multiFalse = countTrue(multi.appearsAll(outBloom));
+		naiveFalse = countTrue(naive.appearsAll(outBloom));
 		
 		//calculate percentage of false positives
 		float fnvPercent = (float) ((fnvFalse/numberOfStrings)*100);
@@ -71,7 +59,78 @@ public class FalsePositives {
 		System.out.println("BloomFilterFNV false positives for " + n + " bitsPerElement:\t\t" + fnvPercent + "%");
 		System.out.println("BloomFilterRan false positives for " + n + " bitsPerElement:\t\t" + ranPercent + "%");
 		System.out.println("MultiMultiBloomFilter false positives for " + n + " bitsPerElement:\t" + multiPercent + "%");
-		System.out.println("NaiveBloomFilter false positives for " + n + " bitsPerElement:\t\t" + naivePercent + "%\n\n");
+		System.out.println("NaiveBloomFilter false positives for " + n + " bitsPerElement:\t\t" + naivePercent + "%");
+		
+		//same single table filter hashing each key once with a 64-bit strategy
+		HashStrategy strategies[] = {HashStrategy.FNV1A, HashStrategy.MURMUR3, HashStrategy.XXHASH64};
+		for(HashStrategy strategy : strategies) {
+			BloomFilter filter = new BloomFilterRan(numberOfStrings, n, strategy);
+			System.out.println("BloomFilterRan (" + strategy + ") false positives for " + n + " bitsPerElement:\t"
+					+ falsePositivePercent(filter, numberOfStrings) + "%");
+		}
+		
+		//all k probes of a key confined to one 512-bit cache line block
+		BloomFilter blocked = new BlockedBloomFilter(numberOfStrings, n);
+		System.out.println("BlockedBloomFilter false positives for " + n + " bitsPerElement:\t\t"
+				+ falsePositivePercent(blocked, numberOfStrings) + "%");
+		
+		//static filter solved for inBloom, its size set by the key count instead of n
+		BloomFilter fuse = new BinaryFuseFilter(Arrays.asList(inBloom));
+		float fusePercent = (float) ((countTrue(fuse.appearsAll(outBloom))/(double) numberOfStrings)*100);
+		System.out.println("BinaryFuseFilter false positives at " + (fuse.filterSize()/numberOfStrings) + " bitsPerElement:\t\t"
+				+ fusePercent + "%\n\n");
+	}
+	
+	/**
+	 * Adds inBloom to filter and returns the percentage of outBloom it reports as present.
+	 * @param filter
+	 * @param numberOfStrings
+	 * @return
+	 */
+	public static float falsePositivePercent(BloomFilter filter, int numberOfStrings) {
+		ParallelBloomBuilder.build(filter, inBloom);
+		double falsePositives = countTrue(filter.appearsAll(outBloom));
+		return (float) ((falsePositives/numberOfStrings)*100);
+	}
+	
+	/**
+	 * Adds keys made of mixed case non-ASCII words and inBloom strings to a filter of each hash
+	 * strategy as UTF-8 bytes, then looks each key up as a String. Returns the number of lookups that
+	 * miss, which is 0 when the byte and String paths fold and hash keys alike.
+	 * @param numberOfStrings
+	 * @return
+	 */
+	public static int keyParityMisses(int numberOfStrings) {
+		HashStrategy strategies[] = {HashStrategy.FNV1A, HashStrategy.MURMUR3, HashStrategy.XXHASH64};
+		int misses = 0;
+		for(HashStrategy strategy : strategies) {
+			BloomFilter filter = new BloomFilterRan(numberOfStrings, 8, strategy);
+			for(int i = 0; i < numberOfStrings; i++) {
+				byte key[] = (NON_ASCII_WORDS[i % NON_ASCII_WORDS.length] + " " + inBloom[i]).getBytes(StandardCharsets.UTF_8);
+				filter.add(key, 0, key.length);
+			}
+			for(int i = 0; i < numberOfStrings; i++) {
+				if(!filter.appears(NON_ASCII_WORDS[i % NON_ASCII_WORDS.length] + " " + inBloom[i])) {
+					misses++;
+				}
+			}
+		}
+		return misses;
+	}
+	
+	/**
+	 * Returns the number of true entries in results.
+	 * @param results
+	 * @return
+	 */
+	public static int countTrue(boolean results[]) {
+		int count = 0;
+		for(boolean result : results) {
+			if(result) {
+				count++;
+			}
+		}
+		return count;
 	}
 	
 	/**
@@ -118,6 +177,7 @@ public class FalsePositives {
 			str2[i] = g; 
 		}
 		outBloom = str2;
+		System.out.println("Keys added as bytes and missed as Strings: " + keyParityMisses(100000) + "\n");
 		test(100000,4);
 		test(100000,8);
 		test(100000,10);
@@ -0,0 +1,137 @@
+/**
+ * 
+ * Snapshot of the health of a Bloom filter taken by InstrumentedBloomFilter.snapshot. The filter
+ * state and the counters are read once when the snapshot is taken, so the values are consistent
+ * with each other and do not change afterwards.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public final class FilterMetrics implements FilterMetricsMXBean {
+	
+	private String filterType;
+	private long filterSize, bitsSet;
+	private int numHashes, dataSize;
+	private double expectedRate, estimatedRate;
+	private long adds, queries, positives, falsePositives;
+	private long latencyHistogram[];
+	
+	/**
+	 * Creates a snapshot from values already read.
+	 * @param filter
+	 * @param bitsSet - -1 if the filter does not count its bits
+	 * @param estimatedRate - NaN if the filter does not count its bits
+	 * @param adds
+	 * @param queries
+	 * @param positives
+	 * @param falsePositives
+	 * @param latencyHistogram
+	 */
+	FilterMetrics(BloomFilter filter, long bitsSet, double estimatedRate, long adds, long queries, long positives, long falsePositives, long latencyHistogram[]) {
+		filterType = filter.getClass().getSimpleName();
+		filterSize = filter.filterSize();
+		numHashes = filter.numHashes();
+		dataSize = filter.dataSize();
+		expectedRate = filter.expectedFalsePositiveRate();
+		this.bitsSet = bitsSet;
+		this.estimatedRate = estimatedRate;
+		this.adds = adds;
+		this.queries = queries;
+		this.positives = positives;
+		this.falsePositives = falsePositives;
+		this.latencyHistogram = latencyHistogram;
+	}
+	
+	public String getFilterType() {
+		return filterType;
+	}
+	
+	public long getFilterSize() {
+		return filterSize;
+	}
+	
+	public int getNumHashes() {
+		return numHashes;
+	}
+	
+	public int getDataSize() {
+		return dataSize;
+	}
+	
+	public long getBitsSet() {
+		return bitsSet;
+	}
+	
+	public double getFillRatio() {
+		return bitsSet < 0 ? Double.NaN : (double) bitsSet / filterSize;
+	}
+	
+	public double getExpectedFalsePositiveRate() {
+		return expectedRate;
+	}
+	
+	public double getEstimatedFalsePositiveRate() {
+		return estimatedRate;
+	}
+	
+	public long getAddCount() {
+		return adds;
+	}
+	
+	public long getQueryCount() {
+		return queries;
+	}
+	
+	public long getPositiveCount() {
+		return positives;
+	}
+	
+	public long getConfirmedFalsePositives() {
+		return falsePositives;
+	}
+	
+	public double getObservedFalsePositiveRate() {
+		long negatives = queries - (positives - falsePositives);
+		return negatives <= 0 ? Double.NaN : (double) falsePositives / negatives;
+	}
+	
+	public long[] getQueryLatencyHistogram() {
+		return latencyHistogram.clone();
+	}
+	
+	public long getMedianQueryNanos() {
+		return queryNanosAt(0.5);
+	}
+	
+	public long getP99QueryNanos() {
+		return queryNanosAt(0.99);
+	}
+	
+	/**
+	 * Returns an upper bound on the latency in nanoseconds under which a fraction q of the queries
+	 * completed, or 0 before the first query.
+	 * @param q - in [0, 1]
+	 * @return
+	 */
+	public long queryNanosAt(double q) {
+		long total = 0;
+		for(long count : latencyHistogram) {
+			total += count;
+		}
+		long rank = (long) Math.ceil(q * total), seen = 0;
+		for(int i = 0; i < latencyHistogram.length; i++) {
+			seen += latencyHistogram[i];
+			if(seen >= rank && seen > 0) {
+				return i == 0 ? 0 : (1L << i) - 1;
+			}
+		}
+		return 0;
+	}
+	
+	public String toString() {
+		return String.format("%s: %d of %d bits set (%.1f%%), %d keys, fp expected %.4f%% estimated %.4f%% observed %.4f%%, "
+				+ "%d adds, %d queries, %d positives, %d confirmed false positives, query p50 %d ns p99 %d ns",
+				filterType, bitsSet, filterSize, getFillRatio() * 100, dataSize, expectedRate * 100, estimatedRate * 100,
+				getObservedFalsePositiveRate() * 100, adds, queries, positives, falsePositives, getMedianQueryNanos(), getP99QueryNanos());
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * 
+ * JMX view of the health of a Bloom filter in use, registered by InstrumentedBloomFilter.register.
+ * The fill ratio and estimated false positive rate show a filter saturating well before its
+ * lookups slow down: every false positive costs a scan of DiffFile.txt.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public interface FilterMetricsMXBean {
+	
+	/**
+	 * Returns the simple class name of the filter.
+	 * @return
+	 */
+	String getFilterType();
+	
+	/**
+	 * Returns the size of the filter in bits.
+	 * @return
+	 */
+	long getFilterSize();
+	
+	/**
+	 * Returns the number of hash functions of the filter.
+	 * @return
+	 */
+	int getNumHashes();
+	
+	/**
+	 * Returns the number of keys the filter reports holding.
+	 * @return
+	 */
+	int getDataSize();
+	
+	/**
+	 * Returns the number of set bits, or -1 if the filter does not count them.
+	 * @return
+	 */
+	long getBitsSet();
+	
+	/**
+	 * Returns the fraction of bits set, or NaN if the filter does not count them. A well sized filter
+	 * holding its planned number of keys is about half full.
+	 * @return
+	 */
+	double getFillRatio();
+	
+	/**
+	 * Returns the false positive rate expected for the number of keys added.
+	 * @return
+	 */
+	double getExpectedFalsePositiveRate();
+	
+	/**
+	 * Returns the false positive rate estimated from the bits set, or NaN if the filter does not
+	 * count them.
+	 * @return
+	 */
+	double getEstimatedFalsePositiveRate();
+	
+	/**
+	 * Returns the number of keys added through the instrumented filter.
+	 * @return
+	 */
+	long getAddCount();
+	
+	/**
+	 * Returns the number of keys queried.
+	 * @return
+	 */
+	long getQueryCount();
+	
+	/**
+	 * Returns the number of queried keys that appeared.
+	 * @return
+	 */
+	long getPositiveCount();
+	
+	/**
+	 * Returns the number of keys that appeared but were then found not to be in the set, such as
+	 * keys BloomDifferential could not find in DiffFile.txt.
+	 * @return
+	 */
+	long getConfirmedFalsePositives();
+	
+	/**
+	 * Returns confirmed false positives over the queries that were not true positives, or NaN before
+	 * the first such query. Only meaningful when every positive is checked.
+	 * @return
+	 */
+	double getObservedFalsePositiveRate();
+	
+	/**
+	 * Returns query counts by latency: entry 0 counts queries under 1 ns and entry i those taking
+	 * from 2^(i-1) to 2^i - 1 ns. Batch queries count each key at the batch's average latency.
+	 * @return
+	 */
+	long[] getQueryLatencyHistogram();
+	
+	/**
+	 * Returns an upper bound on the median query latency in nanoseconds.
+	 * @return
+	 */
+	long getMedianQueryNanos();
+	
+	/**
+	 * Returns an upper bound on the 99th percentile query latency in nanoseconds.
+	 * @return
+	 */
+	long getP99QueryNanos();
+}
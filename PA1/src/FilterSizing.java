@@ -0,0 +1,201 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 
+ * Size of a Bloom filter table: its number of bits m, always a prime, and its number of hash
+ * functions k. A size is chosen either from the number of keys n and the bits per key, the way the
+ * filters have always been sized, or from n and a target false positive rate p, taking the m and k
+ * that reach p with the fewest bits: m = -n ln p / (ln 2)^2 and k = (m/n) ln 2.
+ * 
+ * The table is rounded up to the next prime with a deterministic Miller-Rabin test, so choosing a
+ * size costs microseconds even for a billion-bit filter, where trying divisors took minutes.
+ * Primes already found are cached.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public final class FilterSizing {
+	
+	private static final int CACHE_LIMIT = 256;
+	private static final long SMALL_PRIMES[] = {2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47};
+	private static final long WITNESSES[] = {2, 325, 9375, 28178, 450775, 9780504, 1795265022};
+	private static final Map<Long,Long> NEXT_PRIMES = new ConcurrentHashMap<Long,Long>();
+	
+	private long bits;
+	private int numHashes;
+	
+	private FilterSizing(long bits, int numHashes) {
+		this.bits = bits;
+		this.numHashes = numHashes;
+	}
+	
+	/**
+	 * Sizes a filter of bitsPerElement bits for each of n keys, with k = ceil(bitsPerElement ln 2)
+	 * hash functions.
+	 * @param n
+	 * @param bitsPerElement
+	 * @return
+	 */
+	public static FilterSizing forBitsPerElement(long n, int bitsPerElement) {
+		if(n <= 0 || bitsPerElement <= 0) {
+			throw new IllegalArgumentException("need n > 0 and bitsPerElement > 0");
+		}
+		long m = Math.multiplyExact(n, (long) bitsPerElement);
+		return new FilterSizing(nextPrime(m), (int) Math.ceil(Math.log(2) * bitsPerElement));
+	}
+	
+	/**
+	 * Sizes the smallest filter expected to have a false positive rate of at most
+	 * falsePositiveRate once it holds n keys.
+	 * @param n
+	 * @param falsePositiveRate
+	 * @return
+	 */
+	public static FilterSizing forFalsePositiveRate(long n, double falsePositiveRate) {
+		if(n <= 0 || !(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("need n > 0 and 0 < falsePositiveRate < 1");
+		}
+		double m = Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		if(m >= Long.MAX_VALUE / 2) {
+			throw new IllegalArgumentException("filter too large for " + n + " keys at " + falsePositiveRate);
+		}
+		//k must be whole, which can leave the rate just above the target; grow m until it is met
+		long bits = nextPrime((long) m);
+		int k = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+		while(BloomFilter.falsePositiveRate(bits, k, n) > falsePositiveRate) {
+			bits = nextPrime(bits + bits / 1000);
+			k = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+		}
+		return new FilterSizing(bits, k);
+	}
+	
+	/**
+	 * Returns the number of bits m of the table, a prime.
+	 * @return
+	 */
+	public long bits() {
+		return bits;
+	}
+	
+	/**
+	 * Returns the number of hash functions k.
+	 * @return
+	 */
+	public int numHashes() {
+		return numHashes;
+	}
+	
+	/**
+	 * Returns the false positive rate expected of a filter of this size holding n keys.
+	 * @param n
+	 * @return
+	 */
+	public double falsePositiveRate(long n) {
+		return BloomFilter.falsePositiveRate(bits, numHashes, n);
+	}
+	
+	public String toString() {
+		return bits + " bits, " + numHashes + " hash functions";
+	}
+	
+	/**
+	 * Returns the smallest prime greater than n.
+	 * @param n - less than 2^62
+	 * @return
+	 */
+	public static long nextPrime(long n) {
+		if(n < 2) {
+			return 2;
+		}
+		if(n >= 1L << 62) {
+			throw new IllegalArgumentException("too large: " + n);
+		}
+		Long cached = NEXT_PRIMES.get(n);
+		if(cached != null) {
+			return cached;
+		}
+		long candidate = (n + 1) | 1;
+		while(!isPrime(candidate)) {
+			candidate += 2;
+		}
+		if(NEXT_PRIMES.size() >= CACHE_LIMIT) {
+			NEXT_PRIMES.clear();
+		}
+		NEXT_PRIMES.put(n, candidate);
+		return candidate;
+	}
+	
+	/**
+	 * Returns true if n is prime. Small factors are tried first and the rest is decided by Miller-Rabin
+	 * with seven fixed witnesses, which is exact for every n below 2^64.
+	 * @param n
+	 * @return
+	 */
+	public static boolean isPrime(long n) {
+		if(n < 2) {
+			return false;
+		}
+		for(long p : SMALL_PRIMES) {
+			if(n % p == 0) {
+				return n == p;
+			}
+		}
+		long d = n - 1;
+		int s = Long.numberOfTrailingZeros(d);
+		d >>= s;
+		for(long witness : WITNESSES) {
+			long a = witness % n;
+			if(a == 0) {
+				continue;
+			}
+			long x = powMod(a, d, n);
+			if(x == 1 || x == n - 1) {
+				continue;
+			}
+			boolean composite = true;
+			for(int r = 1; r < s && composite; r++) {
+				x = mulMod(x, x, n);
+				composite = x != n - 1;
+			}
+			if(composite) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static long powMod(long base, long exponent, long m) {
+		long result = 1;
+		while(exponent > 0) {
+			if((exponent & 1) != 0) {
+				result = mulMod(result, base, m);
+			}
+			base = mulMod(base, base, m);
+			exponent >>>= 1;
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns a * b mod m for a and b in [0, m), without overflowing.
+	 * @param a
+	 * @param b
+	 * @param m
+	 * @return
+	 */
+	private static long mulMod(long a, long b, long m) {
+		if(m <= 3037000499L) {
+			return a * b % m;
+		}
+		long result = 0;
+		while(b > 0) {
+			if((b & 1) != 0) {
+				result = result >= m - a ? result - (m - a) : result + a;
+			}
+			a = a >= m - a ? a - (m - a) : a + a;
+			b >>>= 1;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,72 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 
+ * Hash function used by a Bloom filter to reduce a key to one 64-bit digest. The filter hashes each
+ * key once and derives all of its probes from the digest with BloomFilter.probe. Implementations
+ * must be case-insensitive and stateless so a single instance can be shared.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public interface HashStrategy {
+	
+	HashStrategy FNV1A = new FNV1aHashStrategy();
+	HashStrategy MURMUR3 = new Murmur3HashStrategy();
+	HashStrategy XXHASH64 = new XxHash64Strategy();
+	
+	/**
+	 * Hashes len bytes of buf starting at off. ASCII letters are folded to lowercase as they are
+	 * read, the buffer itself is not modified. Other bytes are hashed as they are, so callers hashing
+	 * keys use hash(byte[], int, int), which also folds non-ASCII letters.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return 64-bit digest
+	 */
+	long hashFolded(byte[] buf, int off, int len);
+	
+	/**
+	 * Hashes the key held in len bytes of buf starting at off as UTF-8, with the same digest
+	 * hash(String) gives for the decoded key. ASCII keys are hashed in place by hashFolded; a key
+	 * with any other byte is decoded first, so its letters are lowercased just as a String's are.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return 64-bit digest
+	 */
+	default long hash(byte[] buf, int off, int len) {
+		if(KeyBytes.isAscii(buf, off, len)) {
+			return hashFolded(buf, off, len);
+		}
+		return hash(new String(buf, off, len, StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Hashes len bytes of buf starting at off, with the same digest hash(byte[], int, int) gives for
+	 * those bytes. Heap buffers are hashed in place; direct and mapped buffers are copied to a
+	 * per-thread scratch array first. buf's position and limit are not changed.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return 64-bit digest
+	 */
+	default long hash(ByteBuffer buf, int off, int len) {
+		if(buf.hasArray()) {
+			return hash(buf.array(), buf.arrayOffset() + off, len);
+		}
+		return hash(KeyBytes.copy(buf, off, len), 0, len);
+	}
+	
+	/**
+	 * Hashes the lowercased UTF-8 bytes of s, the same digest as hashing the string's UTF-8 bytes
+	 * with hash(byte[], int, int).
+	 * @param s
+	 * @return 64-bit digest
+	 */
+	default long hash(String s) {
+		byte[] buf = KeyBytes.scratch(s.length());
+		return hashFolded(buf, 0, KeyBytes.encode(s, buf));
+	}
+}
@@ -0,0 +1,220 @@
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * 
+ * Wraps any Bloom filter to watch it in use. Adds, queries and positive answers are counted,
+ * every query is timed into a histogram of power of two nanosecond buckets, and callers that check
+ * positives against the real data report the ones that turned out false. snapshot returns all of
+ * it together with the fill of the wrapped filter, and register publishes the same values as a
+ * FilterMetricsMXBean on the platform MBean server.
+ *
+ * The counters never block, so the wrapper is as thread-safe as the filter it wraps. Timing a
+ * query costs two System.nanoTime calls.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class InstrumentedBloomFilter implements BloomFilter {
+	
+	private static final int LATENCY_BUCKETS = 48;
+	
+	private BloomFilter filter;
+	private LongAdder adds = new LongAdder(), queries = new LongAdder(), positives = new LongAdder(), falsePositives = new LongAdder();
+	private AtomicLongArray latency = new AtomicLongArray(LATENCY_BUCKETS);
+	private ObjectName registeredName;
+	
+	/**
+	 * Instruments filter, which should no longer be used directly.
+	 * @param filter
+	 */
+	public InstrumentedBloomFilter(BloomFilter filter) {
+		if(filter instanceof InstrumentedBloomFilter) {
+			filter = ((InstrumentedBloomFilter) filter).filter;
+		}
+		this.filter = filter;
+	}
+	
+	public void add(String s) {
+		filter.add(s);
+		adds.increment();
+	}
+	
+	public boolean appears(String s) {
+		long start = System.nanoTime();
+		boolean appears = filter.appears(s);
+		recordQueries(1, appears ? 1 : 0, System.nanoTime() - start);
+		return appears;
+	}
+	
+	public void add(byte buf[], int off, int len) {
+		filter.add(buf, off, len);
+		adds.increment();
+	}
+	
+	public boolean appears(byte buf[], int off, int len) {
+		long start = System.nanoTime();
+		boolean appears = filter.appears(buf, off, len);
+		recordQueries(1, appears ? 1 : 0, System.nanoTime() - start);
+		return appears;
+	}
+	
+	public void addAll(String keys[]) {
+		filter.addAll(keys);
+		adds.add(keys.length);
+	}
+	
+	public boolean[] appearsAll(String keys[]) {
+		long start = System.nanoTime();
+		boolean results[] = filter.appearsAll(keys);
+		long elapsed = System.nanoTime() - start;
+		int found = 0;
+		for(boolean result : results) {
+			found += result ? 1 : 0;
+		}
+		recordQueries(keys.length, found, elapsed);
+		return results;
+	}
+	
+	/**
+	 * Counts n queries, found of them positive, that took elapsed nanoseconds together.
+	 * @param n
+	 * @param found
+	 * @param elapsed
+	 */
+	private void recordQueries(int n, int found, long elapsed) {
+		if(n == 0) {
+			return;
+		}
+		queries.add(n);
+		positives.add(found);
+		int bucket = Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, elapsed / n)));
+		latency.addAndGet(bucket, n);
+	}
+	
+	/**
+	 * Records that a key which appeared was then found not to have been added.
+	 */
+	public void recordFalsePositive() {
+		falsePositives.increment();
+	}
+	
+	/**
+	 * Returns the current metrics of the filter. Counting the set bits reads the whole filter.
+	 * @return
+	 */
+	public FilterMetrics snapshot() {
+		boolean countsBits = filter.countsBits();
+		long bitsSet = countsBits ? filter.bitsSet() : -1;
+		double estimatedRate = countsBits ? filter.estimateFalsePositiveRate() : Double.NaN;
+		long histogram[] = new long[LATENCY_BUCKETS];
+		for(int i = 0; i < histogram.length; i++) {
+			histogram[i] = latency.get(i);
+		}
+		return new FilterMetrics(filter, bitsSet, estimatedRate, adds.sum(), queries.sum(), positives.sum(), falsePositives.sum(), histogram);
+	}
+	
+	/**
+	 * Registers the metrics of the filter on the platform MBean server as
+	 * BloomFilter:type=&lt;filter class&gt;,name=name. Every attribute read takes a new snapshot.
+	 * @param name
+	 * @throws JMException if the name is taken or not valid
+	 */
+	public synchronized void register(String name) throws JMException {
+		unregister();
+		FilterMetricsMXBean live = (FilterMetricsMXBean) Proxy.newProxyInstance(FilterMetricsMXBean.class.getClassLoader(),
+				new Class<?>[] {FilterMetricsMXBean.class}, (proxy, method, args) -> method.invoke(snapshot(), args));
+		ObjectName objectName = new ObjectName("BloomFilter:type=" + filter.getClass().getSimpleName() + ",name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(live, FilterMetricsMXBean.class, true), objectName);
+		registeredName = objectName;
+	}
+	
+	/**
+	 * Removes the MBean added by register, if any.
+	 * @throws JMException
+	 */
+	public synchronized void unregister() throws JMException {
+		if(registeredName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+			registeredName = null;
+		}
+	}
+	
+	/**
+	 * Returns the wrapped filter.
+	 * @return
+	 */
+	public BloomFilter getFilter() {
+		return filter;
+	}
+	
+	public long filterSize() {
+		return filter.filterSize();
+	}
+	
+	public int dataSize() {
+		return filter.dataSize();
+	}
+	
+	public int numHashes() {
+		return filter.numHashes();
+	}
+	
+	public boolean canMerge() {
+		return filter.canMerge();
+	}
+	
+	/**
+	 * Merges other into the wrapped filter. Keys added through an instrumented other are counted as
+	 * added here, so a filter built from copies by ParallelBloomBuilder counts every key.
+	 * @param other
+	 */
+	public void union(BloomFilter other) {
+		filter.union(unwrap(other));
+		if(other instanceof InstrumentedBloomFilter) {
+			adds.add(((InstrumentedBloomFilter) other).adds.sum());
+		}
+	}
+	
+	public void intersect(BloomFilter other) {
+		filter.intersect(unwrap(other));
+	}
+	
+	public double estimateCardinality() {
+		return filter.estimateCardinality();
+	}
+	
+	public boolean countsBits() {
+		return filter.countsBits();
+	}
+	
+	public long bitsSet() {
+		return filter.bitsSet();
+	}
+	
+	public double expectedFalsePositiveRate() {
+		return filter.expectedFalsePositiveRate();
+	}
+	
+	public double estimateFalsePositiveRate() {
+		return filter.estimateFalsePositiveRate();
+	}
+	
+	/**
+	 * Returns an instrumented empty copy of the wrapped filter, with counters of its own.
+	 * @return
+	 */
+	public BloomFilter emptyCopy() {
+		return new InstrumentedBloomFilter(filter.emptyCopy());
+	}
+	
+	private static BloomFilter unwrap(BloomFilter other) {
+		return other instanceof InstrumentedBloomFilter ? ((InstrumentedBloomFilter) other).filter : other;
+	}
+}
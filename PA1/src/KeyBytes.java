@@ -0,0 +1,191 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 
+ * Byte level helpers shared by the HashStrategy implementations: case folding, little-endian
+ * word reads and a per-thread scratch buffer for encoding String keys without allocating. Also
+ * decides what separates the tokens of a record, for the code that reads keys as chars and the
+ * code that reads them as UTF-8 bytes alike.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+final class KeyBytes {
+	
+	private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final long ONES = 0x0101010101010101L;
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+	
+	private KeyBytes() {
+	}
+	
+	/**
+	 * Returns this thread's scratch buffer, grown so it can hold the UTF-8 encoding of a string of
+	 * length chars.
+	 * @param length
+	 * @return
+	 */
+	static byte[] scratch(int length) {
+		byte[] buf = SCRATCH.get();
+		if(buf.length < length * 3) {
+			buf = new byte[length * 3];
+			SCRATCH.set(buf);
+		}
+		return buf;
+	}
+	
+	/**
+	 * Returns this thread's scratch buffer, grown so it holds at least length bytes.
+	 * @param length
+	 * @return
+	 */
+	static byte[] scratchBytes(int length) {
+		return scratch((length + 2) / 3);
+	}
+	
+	/**
+	 * Copies len bytes of buf starting at off into this thread's scratch buffer and returns it.
+	 * buf's position and limit are not changed.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	static byte[] copy(ByteBuffer buf, int off, int len) {
+		byte[] scratch = scratchBytes(len);
+		buf.get(off, scratch, 0, len);
+		return scratch;
+	}
+	
+	/**
+	 * Writes the lowercased UTF-8 encoding of s into buf and returns the number of bytes written.
+	 * buf must come from scratch(s.length()).
+	 * @param s
+	 * @param buf
+	 * @return
+	 */
+	static int encode(String s, byte[] buf) {
+		int n = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char c = Character.toLowerCase(s.charAt(i));
+			if(c < 0x80) {
+				buf[n++] = (byte) c;
+			}else if(c < 0x800) {
+				buf[n++] = (byte) (0xc0 | (c >> 6));
+				buf[n++] = (byte) (0x80 | (c & 0x3f));
+			}else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toLowerCase(Character.toCodePoint(c, s.charAt(++i)));
+				buf[n++] = (byte) (0xf0 | (cp >> 18));
+				buf[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[n++] = (byte) (0x80 | (cp & 0x3f));
+			}else {
+				buf[n++] = (byte) (0xe0 | (c >> 12));
+				buf[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[n++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * Returns true if c separates the tokens of a record, which is whitespace as
+	 * Character.isWhitespace defines it.
+	 * @param c
+	 * @return
+	 */
+	static boolean isDelimiter(int c) {
+		return Character.isWhitespace(c);
+	}
+	
+	/**
+	 * Returns the number of bytes of the delimiter whose UTF-8 encoding starts at i in buf, or 0 when
+	 * the character there is not a delimiter. Beyond ASCII, every character isDelimiter accepts is
+	 * encoded in three bytes.
+	 * @param buf
+	 * @param i
+	 * @param end - the end of the line
+	 * @return
+	 */
+	static int delimiterLength(ByteBuffer buf, int i, int end) {
+		int b = buf.get(i);
+		if(b >= 0) {
+			return b == ' ' || (b >= '\t' && b <= '\r') || (b >= 0x1c && b <= 0x1f) ? 1 : 0;
+		}
+		if((b & 0xf0) != 0xe0 || i + 2 >= end) {
+			return 0;
+		}
+		int b1 = buf.get(i + 1), b2 = buf.get(i + 2);
+		if((b1 & 0xc0) != 0x80 || (b2 & 0xc0) != 0x80) {
+			return 0;
+		}
+		return isDelimiter((b & 0x0f) << 12 | (b1 & 0x3f) << 6 | (b2 & 0x3f)) ? 3 : 0;
+	}
+	
+	/**
+	 * Returns true if none of the len bytes of buf starting at off has its high bit set, that is if
+	 * they are an ASCII key, checking eight bytes at a time.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	static boolean isAscii(byte[] buf, int off, int len) {
+		int end = off + len;
+		int i = off;
+		long high = 0;
+		for(; i + 8 <= end; i += 8) {
+			high |= (long) LONG_LE.get(buf, i);
+		}
+		for(; i < end; i++) {
+			high |= buf[i];
+		}
+		return (high & (0x80 * ONES)) == 0;
+	}
+	
+	/**
+	 * Returns byte b as an unsigned value with ASCII 'A'-'Z' folded to lowercase.
+	 * @param b
+	 * @return
+	 */
+	static int fold(byte b) {
+		int c = b & 0xff;
+		return (c >= 'A' && c <= 'Z') ? c | 0x20 : c;
+	}
+	
+	/**
+	 * Folds every ASCII uppercase byte packed in w to lowercase at once. Bytes with the high bit set
+	 * are left alone.
+	 * @param w
+	 * @return
+	 */
+	static long foldWord(long w) {
+		long low = w & (0x7f * ONES);
+		long upper = ((low + (0x80 - 'A') * ONES) ^ (low + (0x80 - 'Z' - 1) * ONES)) & ~w & (0x80 * ONES);
+		return w | (upper >>> 2);
+	}
+	
+	/**
+	 * Reads eight bytes at off as a little-endian long with ASCII case folded.
+	 * @param buf
+	 * @param off
+	 * @return
+	 */
+	static long getLong(byte[] buf, int off) {
+		return foldWord((long) LONG_LE.get(buf, off));
+	}
+	
+	/**
+	 * Reads four bytes at off as an unsigned little-endian int with ASCII case folded.
+	 * @param buf
+	 * @param off
+	 * @return
+	 */
+	static long getInt(byte[] buf, int off) {
+		return foldWord((int) INT_LE.get(buf, off) & 0xffffffffL);
+	}
+}
@@ -0,0 +1,150 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 
+ * Loopback socket front end of a LookupService, for load testing it from other processes. The
+ * protocol is one UTF-8 line per key and one line per answer: the record, or "record not found",
+ * or "error: " and a message. Answers come back in the order the keys were sent, and a client may
+ * send many keys before reading any answers, so a single connection can keep many lookups in
+ * flight.
+ * 
+ * Each connection has a thread reading keys and one writing answers, taken from the service's
+ * executor, so with virtual threads thousands of connections cost little.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class LookupServer implements AutoCloseable {
+	
+	private static final CompletableFuture<String> END = CompletableFuture.completedFuture(null);
+	
+	private LookupService service;
+	private ServerSocket serverSocket;
+	
+	/**
+	 * Starts serving service on port of the loopback address; port 0 picks a free port.
+	 * @param service
+	 * @param port
+	 * @throws IOException
+	 */
+	public LookupServer(LookupService service, int port) throws IOException {
+		this.service = service;
+		serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+		service.executor().execute(this::accept);
+	}
+	
+	/**
+	 * Returns the port the server listens on.
+	 * @return
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+	
+	/**
+	 * Accepts connections until the server is closed.
+	 */
+	private void accept() {
+		while(!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				BlockingQueue<CompletableFuture<String>> answers = new LinkedBlockingQueue<CompletableFuture<String>>();
+				service.executor().execute(() -> readKeys(socket, answers));
+				service.executor().execute(() -> writeAnswers(socket, answers));
+			}catch(IOException e) {
+				//closed
+			}
+		}
+	}
+	
+	/**
+	 * Starts a lookup for every line read from socket, queueing its answer. The socket is left open
+	 * for the writer, which closes it after the last answer.
+	 * @param socket
+	 * @param answers
+	 */
+	private void readKeys(Socket socket, BlockingQueue<CompletableFuture<String>> answers) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			String key;
+			while((key = in.readLine()) != null) {
+				answers.add(service.lookup(key));
+			}
+		}catch(IOException | IllegalStateException e) {
+			//connection or service closed
+		}finally {
+			answers.add(END);
+		}
+	}
+	
+	/**
+	 * Writes the queued answers to socket in order, flushing before waiting for one that is not
+	 * ready.
+	 * @param socket
+	 * @param answers
+	 */
+	private void writeAnswers(Socket socket, BlockingQueue<CompletableFuture<String>> answers) {
+		try(socket; BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+			while(true) {
+				CompletableFuture<String> answer = answers.poll();
+				if(answer == null) {
+					out.flush();
+					answer = answers.take();
+				}
+				if(answer == END) {
+					break;
+				}
+				if(!answer.isDone()) {
+					out.flush();
+				}
+				out.write(answerLine(answer));
+				out.newLine();
+			}
+		}catch(IOException | InterruptedException e) {
+			//connection closed
+		}
+	}
+	
+	private static String answerLine(CompletableFuture<String> answer) {
+		try {
+			return answer.join();
+		}catch(CompletionException e) {
+			return "error: " + e.getCause();
+		}
+	}
+	
+	/**
+	 * Stops accepting connections. Open connections are served until their clients close them.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+	
+	/**
+	 * Serves DiffFile.txt and database.txt on the port given as the first argument, 0 for any free
+	 * port, until the process is stopped.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String args[]) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+		BloomDifferential bDif = new BloomDifferential(10,"DiffFile.txt","database.txt");
+		LookupService service = new LookupService(bDif);
+		LookupServer server = new LookupServer(service, port);
+		System.out.println("Serving lookups on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort());
+		Thread.currentThread().join();
+	}
+}
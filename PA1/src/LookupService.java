@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 
+ * Answers many concurrent lookups against a BloomDifferential without giving each its own file
+ * scan. Keys asked for while a scan is running wait together, and when it finishes all of them are
+ * answered by one call to retrieveRecords: one filter pass and at most one pass over each file,
+ * however many keys there are. Callers asking for the same key share one answer. Under load the
+ * batches grow with the queue, so a lookup waits for at most the scan in progress and its own.
+ * Keys already in the differential's RecordCache are answered at once without waiting.
+ * 
+ * Scans run one at a time, on one thread. The executor, which uses virtual threads when the JVM
+ * has them (Java 21 and later) and a cached pool of daemon threads otherwise, runs that thread and
+ * front end work such as LookupServer connections; it does not run scans in parallel. Only the
+ * service should use the differential while it is open.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class LookupService implements AutoCloseable {
+	
+	private BloomDifferential differential;
+	private ExecutorService executor;
+	private Map<String,CompletableFuture<String>> pending = new LinkedHashMap<String,CompletableFuture<String>>();
+	private boolean scanning, closed;
+	private long scans, keysScanned;
+	
+	/**
+	 * Creates a service answering lookups from differential.
+	 * @param differential
+	 */
+	public LookupService(BloomDifferential differential) {
+		this.differential = differential;
+		executor = newExecutor();
+	}
+	
+	/**
+	 * Returns a future completed with the record of key, as retrieveRecord would return it,
+	 * including "record not found". A key in the differential's RecordCache is answered at once. The
+	 * future fails if the files cannot be read.
+	 * @param key
+	 * @return
+	 */
+	public CompletableFuture<String> lookup(String key) {
+		if(key == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		synchronized(this) {
+			if(closed) {
+				throw new IllegalStateException("LookupService is closed");
+			}
+			RecordCache cache = differential.getRecordCache();
+			String cached = cache == null ? null : cache.get(key);
+			if(cached != null) {
+				return CompletableFuture.completedFuture(cached);
+			}
+			CompletableFuture<String> record = pending.get(key);
+			if(record == null) {
+				record = new CompletableFuture<String>();
+				pending.put(key, record);
+				if(!scanning) {
+					scanning = true;
+					executor.execute(this::drain);
+				}
+			}
+			return record;
+		}
+	}
+	
+	/**
+	 * Answers the pending keys a batch at a time until none are left. Keys that arrive during a scan
+	 * form the next batch. An Error is left to end the thread rather than handed to callers, and the
+	 * lookups waiting on the scan are cancelled.
+	 */
+	private void drain() {
+		Map<String,CompletableFuture<String>> batch = null;
+		try {
+			while(true) {
+				synchronized(this) {
+					if(pending.isEmpty()) {
+						scanning = false;
+						return;
+					}
+					batch = pending;
+					pending = new LinkedHashMap<String,CompletableFuture<String>>();
+					scans++;
+					keysScanned += batch.size();
+				}
+				try {
+					//lookup has already missed the cache for each of these keys
+					Map<String,String> records = differential.retrieveRecords(batch.keySet(), false);
+					for(Map.Entry<String,CompletableFuture<String>> entry : batch.entrySet()) {
+						entry.getValue().complete(records.get(entry.getKey()));
+					}
+				}catch(IOException | RuntimeException e) {
+					for(CompletableFuture<String> record : batch.values()) {
+						record.completeExceptionally(e);
+					}
+				}
+			}
+		}catch(Error e) {
+			synchronized(this) {
+				if(batch != null) {
+					batch.values().forEach(record -> record.cancel(false));
+				}
+				pending.values().forEach(record -> record.cancel(false));
+				pending.clear();
+				scanning = false;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns the number of scans run, each answering a batch of keys.
+	 * @return
+	 */
+	public synchronized long scanCount() {
+		return scans;
+	}
+	
+	/**
+	 * Returns the number of distinct keys answered by scans.
+	 * @return
+	 */
+	public synchronized long keysScanned() {
+		return keysScanned;
+	}
+	
+	/**
+	 * Returns the executor the service runs on, for front ends to run their own tasks.
+	 * @return
+	 */
+	ExecutorService executor() {
+		return executor;
+	}
+	
+	/**
+	 * Stops taking lookups. Lookups already made are still answered; the differential is left open.
+	 */
+	public void close() {
+		synchronized(this) {
+			closed = true;
+		}
+		executor.shutdown();
+	}
+	
+	/**
+	 * Returns a virtual thread per task executor when the JVM has one, found reflectively so the
+	 * code also runs on Java 17, otherwise a cached pool of daemon threads.
+	 * @return
+	 */
+	private static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch(ReflectiveOperationException | RuntimeException e) {
+			AtomicInteger count = new AtomicInteger();
+			ThreadFactory factory = task -> {
+				Thread thread = new Thread(task, "lookup-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			};
+			return Executors.newCachedThreadPool(factory);
+		}
+	}
+}
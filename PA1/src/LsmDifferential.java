@@ -0,0 +1,428 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 
+ * Log-structured replacement for BloomDifferential that stays fast as the differential grows.
+ * Updated records go into an in-memory write buffer. A full buffer is written out as an
+ * immutable SortedRun with its own Bloom filter and sparse index, and once enough runs pile up a
+ * background thread merges them into a new master file. Lookups check the buffer, then the runs
+ * newest first, then the master through a RecordIndex, so a lookup reads at most one block per
+ * run whose filter matches plus one line of the master.
+ * 
+ * Runs and merged master files live in a run directory. database.txt itself is never modified: it
+ * is the master until the first compaction writes master-N.txt next to the runs. When the run
+ * directory is new, the records of DiffFile.txt become its first run. Run and master files are
+ * written under a .tmp name and renamed once complete, and .tmp files left by a crash are deleted
+ * when the store is opened. Records still in the write buffer are lost if the process dies before
+ * close or flush.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class LsmDifferential {
+	
+	private int bitsPerElement, bufferLimit, maxRuns;
+	private File runDirectory, masterFile;
+	private ConcurrentSkipListMap<String,String> buffer = new ConcurrentSkipListMap<String,String>();
+	private ConcurrentSkipListMap<String,String> flushing;
+	private AtomicInteger bufferSize = new AtomicInteger();
+	private List<SortedRun> runs = new ArrayList<SortedRun>();
+	private RecordIndex masterIndex;
+	private int nextRun, nextMaster;
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private Object flushLock = new Object(), compactLock = new Object();
+	private ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "LsmDifferential-compactor");
+		t.setDaemon(true);
+		return t;
+	});
+	private AtomicBoolean compacting = new AtomicBoolean();
+	private AtomicReference<IOException> compactionFailure = new AtomicReference<IOException>();
+	
+	/**
+	 * Opens a store with a write buffer of 10000 records that compacts once 4 runs exist.
+	 * @param bitsPerElement - Bloom filter bits per key of each run
+	 * @param difFileName
+	 * @param dataFileName
+	 * @param runDirectoryName
+	 * @throws IOException
+	 */
+	public LsmDifferential(int bitsPerElement, String difFileName, String dataFileName, String runDirectoryName) throws IOException {
+		this(bitsPerElement, difFileName, dataFileName, runDirectoryName, 10000, 4);
+	}
+	
+	/**
+	 * Opens the store kept in runDirectoryName, or starts one from DiffFile.txt and database.txt
+	 * when the directory holds no runs or master files yet.
+	 * @param bitsPerElement - Bloom filter bits per key of each run
+	 * @param difFileName
+	 * @param dataFileName
+	 * @param runDirectoryName
+	 * @param bufferLimit - records buffered in memory before they are written as a run
+	 * @param maxRuns - number of runs that starts a background compaction
+	 * @throws IOException
+	 */
+	public LsmDifferential(int bitsPerElement, String difFileName, String dataFileName, String runDirectoryName, int bufferLimit, int maxRuns) throws IOException {
+		this.bitsPerElement = bitsPerElement;
+		this.bufferLimit = bufferLimit;
+		this.maxRuns = maxRuns;
+		runDirectory = new File(runDirectoryName);
+		runDirectory.mkdirs();
+		masterFile = new File(dataFileName);
+		
+		String names[] = runDirectory.list();
+		if(names == null) {
+			throw new IOException("cannot list run directory " + runDirectory);
+		}
+		Arrays.sort(names);
+		for(String name : names) {
+			if(name.endsWith(".tmp")) {
+				//partly written by a process that died
+				new File(runDirectory, name).delete();
+			}else if(name.startsWith("run-") && name.endsWith(".txt")) {
+				runs.add(SortedRun.load(new File(runDirectory, name), bitsPerElement));
+				nextRun = Math.max(nextRun, sequence(name) + 1);
+			}else if(name.startsWith("master-") && name.endsWith(".txt")) {
+				masterFile = new File(runDirectory, name);
+				nextMaster = Math.max(nextMaster, sequence(name) + 1);
+			}
+		}
+		if(runs.isEmpty() && nextMaster == 0) {
+			importDifFile(new File(difFileName));
+		}
+		masterIndex = RecordIndex.open(masterFile, indexFile(masterFile));
+	}
+	
+	/**
+	 * Adds record, replacing any earlier record with the same key. The key is the record's first
+	 * four tokens; the record must have at least five. Once added the record stays added: if the
+	 * full write buffer cannot be written out, its records stay buffered for the next update or
+	 * flush to write, and only flush, compact and close report failures.
+	 * @param record
+	 */
+	public void update(String record) {
+		String key = RecordIndex.keyOf(record);
+		if(key == null) {
+			throw new IllegalArgumentException("record needs a key and data: " + record);
+		}
+		lock.readLock().lock();
+		try {
+			if(buffer.put(key, record.trim()) == null) {
+				bufferSize.incrementAndGet();
+			}
+		}finally {
+			lock.readLock().unlock();
+		}
+		if(bufferSize.get() >= bufferLimit) {
+			try {
+				writeBuffer();
+			}catch(UncheckedIOException e) {
+				//the records are back in the buffer and the next update or flush retries the write
+			}
+		}
+	}
+	
+	/**
+	 * Gets a key as parameter and returns the record corresponding to the record, checking the
+	 * newest level first.
+	 * @param key
+	 * @return the record, or "record not found"
+	 */
+	public String retrieveRecord(String key) {
+		if(key == null) {
+			return null;
+		}
+		key = key.trim();
+		lock.readLock().lock();
+		try {
+			String record = buffer.get(key);
+			if(record == null && flushing != null) {
+				record = flushing.get(key);
+			}
+			for(int i = runs.size() - 1; record == null && i >= 0; i--) {
+				record = runs.get(i).find(key);
+			}
+			if(record == null) {
+				record = masterIndex.find(key);
+			}
+			return record != null ? record : "record not found";
+		}catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Writes the write buffer out as a new run and starts a background compaction if there are now
+	 * maxRuns runs. Lookups and updates continue while the run is written. If the run cannot be
+	 * written its records go back into the write buffer. A failure of the last background
+	 * compaction is thrown here, after the buffer is written.
+	 */
+	public void flush() {
+		writeBuffer();
+		IOException failure = compactionFailure.getAndSet(null);
+		if(failure != null) {
+			throw new UncheckedIOException("background compaction failed", failure);
+		}
+	}
+	
+	/**
+	 * Writes the write buffer out as a new run like flush, without reporting a failed compaction.
+	 */
+	private void writeBuffer() {
+		synchronized(flushLock) {
+			lock.writeLock().lock();
+			try {
+				if(buffer.isEmpty()) {
+					return;
+				}
+				flushing = buffer;
+				buffer = new ConcurrentSkipListMap<String,String>();
+				bufferSize.set(0);
+			}finally {
+				lock.writeLock().unlock();
+			}
+			
+			SortedRun run;
+			try {
+				run = SortedRun.write(new File(runDirectory, String.format("run-%08d.txt", nextRun++)), flushing, bitsPerElement);
+			}catch(IOException e) {
+				restoreFlushing();
+				throw new UncheckedIOException(e);
+			}catch(RuntimeException e) {
+				restoreFlushing();
+				throw e;
+			}
+			
+			lock.writeLock().lock();
+			try {
+				runs.add(run);
+				flushing = null;
+			}finally {
+				lock.writeLock().unlock();
+			}
+		}
+		if(runCount() >= maxRuns && compacting.compareAndSet(false, true)) {
+			compactor.execute(() -> {
+				try {
+					compact();
+				}catch(IOException e) {
+					compactionFailure.set(e);
+				}catch(RuntimeException e) {
+					compactionFailure.set(new IOException(e));
+				}finally {
+					compacting.set(false);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Puts the records of a run that could not be written back into the write buffer, behind any
+	 * update made to the same keys since.
+	 */
+	private void restoreFlushing() {
+		lock.writeLock().lock();
+		try {
+			for(Map.Entry<String,String> entry : flushing.entrySet()) {
+				if(buffer.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+					bufferSize.incrementAndGet();
+				}
+			}
+			flushing = null;
+		}finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Merges every current run into a new master file. Records from the runs replace the master's
+	 * record for the same key in place and new keys are appended. Lookups continue against the old
+	 * levels until the new master and its index are ready. A failure of the last background
+	 * compaction is thrown here.
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		IOException failure = compactionFailure.getAndSet(null);
+		if(failure != null) {
+			throw new IOException("background compaction failed", failure);
+		}
+		synchronized(compactLock) {
+			List<SortedRun> merged;
+			File oldMaster;
+			lock.readLock().lock();
+			try {
+				merged = new ArrayList<SortedRun>(runs);
+				oldMaster = masterFile;
+			}finally {
+				lock.readLock().unlock();
+			}
+			if(merged.isEmpty()) {
+				return;
+			}
+			
+			//newer runs overwrite older ones
+			Map<String,String> updates = new HashMap<String,String>();
+			for(SortedRun run : merged) {
+				run.forEach((key, record) -> updates.put(key, record));
+			}
+			File newMaster = new File(runDirectory, String.format("master-%08d.txt", nextMaster++));
+			File tmp = new File(newMaster.getPath() + ".tmp");
+			FileOutputStream tmpOut = new FileOutputStream(tmp);
+			try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(oldMaster), StandardCharsets.UTF_8));
+					OutputStream out = new BufferedOutputStream(tmpOut, 1 << 16)) {
+				String line;
+				while((line = in.readLine()) != null) {
+					String key = RecordIndex.keyOf(line);
+					String update = key == null ? null : updates.remove(key);
+					out.write(((update != null ? update : line) + "\n").getBytes(StandardCharsets.UTF_8));
+				}
+				for(String record : new TreeMap<String,String>(updates).values()) {
+					out.write((record + "\n").getBytes(StandardCharsets.UTF_8));
+				}
+				out.flush();
+				tmpOut.getChannel().force(true);
+			}catch(IOException | RuntimeException e) {
+				tmp.delete();
+				throw e;
+			}
+			Files.move(tmp.toPath(), newMaster.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			RecordIndex newIndex = RecordIndex.open(newMaster, indexFile(newMaster));
+			
+			RecordIndex oldIndex;
+			lock.writeLock().lock();
+			try {
+				oldIndex = masterIndex;
+				masterIndex = newIndex;
+				masterFile = newMaster;
+				runs.removeAll(merged);
+			}finally {
+				lock.writeLock().unlock();
+			}
+			oldIndex.close();
+			for(SortedRun run : merged) {
+				run.delete();
+			}
+			if(oldMaster.getParentFile() != null && oldMaster.getParentFile().equals(runDirectory)) {
+				oldMaster.delete();
+				indexFile(oldMaster).delete();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of runs not yet merged into the master.
+	 * @return
+	 */
+	public int runCount() {
+		lock.readLock().lock();
+		try {
+			return runs.size();
+		}finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the current master file.
+	 * @return
+	 */
+	public File masterFile() {
+		lock.readLock().lock();
+		try {
+			return masterFile;
+		}finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Flushes the write buffer, waits for a running compaction and releases all files. A failure of
+	 * that compaction is thrown once the files are released.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			writeBuffer();
+		}finally {
+			compactor.shutdown();
+			try {
+				compactor.awaitTermination(1, TimeUnit.HOURS);
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			lock.writeLock().lock();
+			try {
+				for(SortedRun run : runs) {
+					run.close();
+				}
+				masterIndex.close();
+			}finally {
+				lock.writeLock().unlock();
+			}
+		}
+		IOException failure = compactionFailure.getAndSet(null);
+		if(failure != null) {
+			throw new IOException("background compaction failed", failure);
+		}
+	}
+	
+	/**
+	 * Writes the records of DiffFile.txt as the first run. As in BloomDifferential the first record
+	 * of a key wins.
+	 * @param difFile
+	 * @throws IOException
+	 */
+	private void importDifFile(File difFile) throws IOException {
+		if(!difFile.exists()) {
+			return;
+		}
+		TreeMap<String,String> records = new TreeMap<String,String>();
+		try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(difFile), StandardCharsets.UTF_8))) {
+			String line;
+			while((line = in.readLine()) != null) {
+				String key = RecordIndex.keyOf(line);
+				if(key != null) {
+					records.putIfAbsent(key, line.trim());
+				}
+			}
+		}
+		if(!records.isEmpty()) {
+			runs.add(SortedRun.write(new File(runDirectory, String.format("run-%08d.txt", nextRun++)), records, bitsPerElement));
+		}
+	}
+	
+	private File indexFile(File master) {
+		return new File(runDirectory, master.getName() + ".idx");
+	}
+	
+	private static int sequence(String name) {
+		return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.length() - 4));
+	}
+}
@@ -0,0 +1,417 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 
+ * Finds records in a record file such as database.txt without decoding it. The file is memory
+ * mapped in line aligned chunks and every line's first four tokens are compared byte for byte with
+ * the UTF-8 encoded key, so a scan allocates nothing until the record is found. Large files are
+ * scanned one chunk per task on a ForkJoinPool, and the earliest matching line in the file is
+ * returned, as a sequential scan would.
+ * 
+ * Tokens are separated by ASCII whitespace. A line needs a fifth token to count as a record, the
+ * same rule BloomDifferential applies.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class MappedRecordScanner {
+	
+	private static final long MIN_CHUNK = 8L << 20;
+	private static final long MAX_CHUNK = 1L << 30;
+	
+	private File file;
+	private long length, modified;
+	private MappedByteBuffer chunks[];
+	private ForkJoinPool pool;
+	
+	/**
+	 * Maps file for scanning on the common ForkJoinPool.
+	 * @param file
+	 * @throws IOException
+	 */
+	public MappedRecordScanner(File file) throws IOException {
+		this(file, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Maps file for scanning on pool. The file is split into at most four chunks per worker thread,
+	 * each at least 8 MiB and at most 1 GiB, ending on line boundaries.
+	 * @param file
+	 * @param pool
+	 * @throws IOException
+	 */
+	public MappedRecordScanner(File file, ForkJoinPool pool) throws IOException {
+		this.file = file;
+		this.pool = pool;
+		modified = file.lastModified();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			length = channel.size();
+			long target = Math.max(MIN_CHUNK, length / (pool.getParallelism() * 4L));
+			target = Math.min(target, MAX_CHUNK);
+			List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+			long start = 0;
+			while(start < length) {
+				long end = start + target >= length ? length : lineEnd(channel, start + target);
+				if(end - start > Integer.MAX_VALUE) {
+					throw new IOException("line longer than 2 GiB in " + file);
+				}
+				mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+				start = end;
+			}
+			chunks = mapped.toArray(new MappedByteBuffer[0]);
+		}
+	}
+	
+	/**
+	 * Returns true if file has been modified since it was mapped, so this scanner may miss records.
+	 * @return
+	 */
+	public boolean isStale() {
+		return file.length() != length || file.lastModified() != modified;
+	}
+	
+	/**
+	 * Returns the first record whose first four tokens, joined by single spaces, equal key trimmed,
+	 * or null if there is none.
+	 * @param key
+	 * @return
+	 */
+	public String find(String key) {
+		byte target[] = key.trim().getBytes(StandardCharsets.UTF_8);
+		if(chunks.length == 1) {
+			return find(chunks[0], target);
+		}
+		
+		//chunks after the earliest one holding a match stop scanning
+		AtomicInteger firstHit = new AtomicInteger(chunks.length);
+		String found[] = new String[chunks.length];
+		List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		for(int i = 0; i < chunks.length; i++) {
+			int c = i;
+			tasks.add(pool.submit(() -> {
+				if(c < firstHit.get()) {
+					found[c] = find(chunks[c], target);
+					if(found[c] != null) {
+						firstHit.accumulateAndGet(c, Math::min);
+					}
+				}
+			}));
+		}
+		for(ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+		int hit = firstHit.get();
+		return hit < chunks.length ? found[hit] : null;
+	}
+	
+	/**
+	 * Finds the first record of every key in keys with a single pass over the file. The keys go into
+	 * an open addressing table by the hash of their bytes; each line's key is hashed in place and
+	 * only lines whose hash is in the table are compared byte for byte.
+	 * @param keys
+	 * @return map from each key that was found to its record
+	 */
+	public Map<String,String> findAll(Collection<String> keys) {
+		String keyList[] = keys.toArray(new String[0]);
+		byte targets[][] = new byte[keyList.length][];
+		int capacity = Integer.highestOneBit(Math.max(1, keyList.length) * 2) * 2;
+		long slotHashes[] = new long[capacity];
+		int slotKeys[] = new int[capacity];
+		for(int k = 0; k < keyList.length; k++) {
+			targets[k] = keyList[k].trim().getBytes(StandardCharsets.UTF_8);
+			long hash = hashTarget(targets[k]);
+			int slot = (int) hash & (capacity - 1);
+			while(slotKeys[slot] != 0) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			slotHashes[slot] = hash;
+			slotKeys[slot] = k + 1;
+		}
+		
+		String found[][] = new String[chunks.length][];
+		List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		for(int i = 0; i < chunks.length; i++) {
+			int c = i;
+			tasks.add(pool.submit(() -> {
+				found[c] = findAll(chunks[c], targets, slotHashes, slotKeys);
+			}));
+		}
+		for(ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+		
+		//the earliest chunk holding a key has its first record
+		Map<String,String> records = new HashMap<String,String>();
+		for(String chunkFound[] : found) {
+			for(int k = 0; k < keyList.length; k++) {
+				if(chunkFound[k] != null) {
+					records.putIfAbsent(keyList[k], chunkFound[k]);
+				}
+			}
+		}
+		return records;
+	}
+	
+	/**
+	 * Returns the number of chunks the file was mapped in.
+	 * @return
+	 */
+	int chunkCount() {
+		return chunks.length;
+	}
+	
+	/**
+	 * Receives the UTF-8 bytes of a record key, valid only until accept returns.
+	 */
+	interface KeyAction {
+		void accept(byte key[], int off, int len);
+	}
+	
+	/**
+	 * Calls action with the key of every record in chunk c, in file order: its first four tokens
+	 * joined by single spaces. Different chunks may be walked by different threads at once.
+	 * @param c
+	 * @param action
+	 */
+	void forEachKey(int c, Consumer<String> action) {
+		forEachKeyBytes(c, (key, off, len) -> action.accept(new String(key, off, len, StandardCharsets.UTF_8)));
+	}
+	
+	/**
+	 * Calls action with the UTF-8 bytes of the key of every record in chunk c, in file order. The
+	 * tokens are copied into one reused buffer, so no objects are created per record.
+	 * @param c
+	 * @param action
+	 */
+	void forEachKeyBytes(int c, KeyAction action) {
+		ByteBuffer chunk = chunks[c];
+		byte key[] = new byte[256];
+		int limit = chunk.limit();
+		int lineStart = 0;
+		while(lineStart < limit) {
+			int lineEnd = lineStart;
+			while(lineEnd < limit && chunk.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			int i = lineStart, k = 0;
+			for(int token = 0; token < 4; token++) {
+				i = skipDelimiters(chunk, i, lineEnd);
+				if(i == lineEnd) {
+					k = -1;
+					break;
+				}
+				if(token > 0) {
+					key[k++] = ' ';
+				}
+				while(i < lineEnd && KeyBytes.delimiterLength(chunk, i, lineEnd) == 0) {
+					if(k == key.length) {
+						key = Arrays.copyOf(key, k * 2);
+					}
+					key[k++] = chunk.get(i++);
+				}
+			}
+			if(k >= 0) {
+				i = skipDelimiters(chunk, i, lineEnd);
+			}
+			if(k >= 0 && i < lineEnd) {
+				action.accept(key, 0, k);
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+	
+	/**
+	 * Scans one chunk for the first record of each target in the probe table.
+	 * @param chunk
+	 * @param targets
+	 * @param slotHashes
+	 * @param slotKeys
+	 * @return the record of each target in this chunk, or null
+	 */
+	private static String[] findAll(ByteBuffer chunk, byte targets[][], long slotHashes[], int slotKeys[]) {
+		String found[] = new String[targets.length];
+		int mask = slotKeys.length - 1;
+		int limit = chunk.limit();
+		int lineStart = 0;
+		while(lineStart < limit) {
+			int lineEnd = lineStart;
+			while(lineEnd < limit && chunk.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			long hash = hashLineKey(chunk, lineStart, lineEnd);
+			if(hash != 0) {
+				for(int slot = (int) hash & mask; slotKeys[slot] != 0; slot = (slot + 1) & mask) {
+					int k = slotKeys[slot] - 1;
+					if(slotHashes[slot] == hash && found[k] == null && matches(chunk, lineStart, lineEnd, targets[k])) {
+						byte line[] = new byte[lineEnd - lineStart];
+						chunk.get(lineStart, line);
+						found[k] = new String(line, StandardCharsets.UTF_8).trim();
+					}
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+		return found;
+	}
+	
+	/**
+	 * FNV-1a hash of a target key's bytes, never 0.
+	 * @param target
+	 * @return
+	 */
+	private static long hashTarget(byte target[]) {
+		long x = 0xcbf29ce484222325L;
+		for(byte b : target) {
+			x = (x ^ (b & 0xff)) * 0x100000001b3L;
+		}
+		return x == 0 ? 1 : x;
+	}
+	
+	/**
+	 * Hashes the key of the line [start, end) of buf the way hashTarget hashes a key: the first four
+	 * tokens with a single space between them. Returns 0 when the line has fewer than five tokens.
+	 * @param buf
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	private static long hashLineKey(ByteBuffer buf, int start, int end) {
+		long x = 0xcbf29ce484222325L;
+		int i = start;
+		for(int token = 0; token < 4; token++) {
+			i = skipDelimiters(buf, i, end);
+			if(i == end) {
+				return 0;
+			}
+			if(token > 0) {
+				x = (x ^ ' ') * 0x100000001b3L;
+			}
+			while(i < end && KeyBytes.delimiterLength(buf, i, end) == 0) {
+				x = (x ^ (buf.get(i) & 0xff)) * 0x100000001b3L;
+				i++;
+			}
+		}
+		i = skipDelimiters(buf, i, end);
+		if(i == end) {
+			return 0;
+		}
+		return x == 0 ? 1 : x;
+	}
+	
+	/**
+	 * Scans one chunk line by line for the first record whose key is target.
+	 * @param chunk
+	 * @param target
+	 * @return
+	 */
+	private static String find(ByteBuffer chunk, byte target[]) {
+		int limit = chunk.limit();
+		int lineStart = 0;
+		while(lineStart < limit) {
+			int lineEnd = lineStart;
+			while(lineEnd < limit && chunk.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			if(matches(chunk, lineStart, lineEnd, target)) {
+				byte line[] = new byte[lineEnd - lineStart];
+				chunk.get(lineStart, line);
+				return new String(line, StandardCharsets.UTF_8).trim();
+			}
+			lineStart = lineEnd + 1;
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns true if the line [start, end) of buf has at least five tokens and its first four,
+	 * joined by single spaces, are the bytes of target.
+	 * @param buf
+	 * @param start
+	 * @param end
+	 * @param target
+	 * @return
+	 */
+	private static boolean matches(ByteBuffer buf, int start, int end, byte target[]) {
+		int i = start, t = 0;
+		for(int token = 0; token < 4; token++) {
+			i = skipDelimiters(buf, i, end);
+			if(i == end) {
+				return false;
+			}
+			if(token > 0) {
+				if(t == target.length || target[t] != ' ') {
+					return false;
+				}
+				t++;
+			}
+			while(i < end && KeyBytes.delimiterLength(buf, i, end) == 0) {
+				if(t == target.length || target[t] != buf.get(i)) {
+					return false;
+				}
+				i++;
+				t++;
+			}
+		}
+		if(t != target.length) {
+			return false;
+		}
+		i = skipDelimiters(buf, i, end);
+		return i < end;
+	}
+	
+	/**
+	 * Returns the offset of the first byte at or after i in buf that does not start a delimiter, or
+	 * end.
+	 * @param buf
+	 * @param i
+	 * @param end
+	 * @return
+	 */
+	private static int skipDelimiters(ByteBuffer buf, int i, int end) {
+		int length;
+		while(i < end && (length = KeyBytes.delimiterLength(buf, i, end)) > 0) {
+			i += length;
+		}
+		return i;
+	}
+	
+	/**
+	 * Returns the offset just past the first newline at or after position, or the file length.
+	 * @param channel
+	 * @param position
+	 * @return
+	 * @throws IOException
+	 */
+	private static long lineEnd(FileChannel channel, long position) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		while(true) {
+			buf.clear();
+			int n = channel.read(buf, position);
+			if(n < 0) {
+				return channel.size();
+			}
+			for(int i = 0; i < n; i++) {
+				if(buf.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += n;
+		}
+	}
+}
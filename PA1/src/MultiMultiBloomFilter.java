@@ -1,5 +1,4 @@
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.Random;
 
 /**
@@ -10,12 +9,14 @@ import java.util.Random;
  * @author Brad Warren bawarren@iastate.edu
  *
  */
-public class MultiMultiBloomFilter {
+public class MultiMultiBloomFilter implements BloomFilter {
 	
-	private int filterSize, dataSize, numHashes, setSize;
-	private BitSet bFilter[];
+	private long filterSize;
+	private int dataSize, numHashes, setSize;
+	private BitArray bFilter[];
 	private int abValues[][];
 	private Random rand;
+	private HashStrategy strategy;
 
 
 	/**
@@ -26,15 +27,44 @@ public class MultiMultiBloomFilter {
 	 */
 	public MultiMultiBloomFilter(int setSize, int bitsPerElement){
 		rand = new Random(setSize);
-		filterSize = setSize * bitsPerElement;
+		filterSize = (long) setSize * bitsPerElement;
 		this.setSize = setSize;
 		numHashes = bitsPerElement;
 		abValues = new int[numHashes][2];
 		this.setSize = primeOverM(setSize);
 		setHashes();
-		bFilter = new BitSet[bitsPerElement];
+		bFilter = new BitArray[bitsPerElement];
 		for(int i = 0; i < numHashes; i++) {
-			bFilter[i] = new BitSet(this.setSize);
+			bFilter[i] = new BitArray(this.setSize);
+		}
+	}
+	
+	/**
+	 * creates a Bloom filter with multiple tables one for each hash function. The index into table i
+	 * is the i-th probe derived from a single 64-bit digest of the key computed by strategy. A null
+	 * strategy keeps the random a*h+b hash functions.
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @param strategy
+	 */
+	public MultiMultiBloomFilter(int setSize, int bitsPerElement, HashStrategy strategy){
+		this(setSize, bitsPerElement);
+		this.strategy = strategy;
+	}
+	
+	/**
+	 * Creates an empty filter with the size and hash functions of template.
+	 * @param template
+	 */
+	private MultiMultiBloomFilter(MultiMultiBloomFilter template){
+		filterSize = template.filterSize;
+		setSize = template.setSize;
+		numHashes = template.numHashes;
+		abValues = template.abValues;
+		strategy = template.strategy;
+		bFilter = new BitArray[numHashes];
+		for(int i = 0; i < numHashes; i++) {
+			bFilter[i] = new BitArray(setSize);
 		}
 	}
 	
@@ -48,6 +78,10 @@ public class MultiMultiBloomFilter {
 		if(s == null) {
 			return;
 		}
+		if(strategy != null) {
+			addDigest(strategy.hash(s));
+			return;
+		}
 		//make string not case sensitive
 		String str = s.toLowerCase();
 		
@@ -56,6 +90,7 @@ public class MultiMultiBloomFilter {
 			hash = hash(str,i);
 			bFilter[i].set(Math.abs(hash));
 		}
+		dataSize++;
 	}
 	
 	/**
@@ -68,6 +103,9 @@ public class MultiMultiBloomFilter {
 		if(s == null) {
 			return false;
 		}
+		if(strategy != null) {
+			return appearsDigest(strategy.hash(s));
+		}
 		//make string not case sensitive
 		s = s.toLowerCase();
 		
@@ -82,11 +120,118 @@ public class MultiMultiBloomFilter {
 		return true;
 	}
 	
+	public HashStrategy strategy() {
+		return strategy;
+	}
+	
+	/**
+	 * Sets probe i of a key digest in table i, for each of the k tables.
+	 * @param digest
+	 */
+	public void addDigest(long digest) {
+		for(int i = 0; i < numHashes; i++) {
+			bFilter[i].set(BloomFilter.probe(digest, i, setSize));
+		}
+		dataSize++;
+	}
+	
+	/**
+	 * Returns true if probe i of a key digest is set in table i for each of the k tables.
+	 * @param digest
+	 * @return
+	 */
+	public boolean appearsDigest(long digest) {
+		for(int i = 0; i < numHashes; i++) {
+			if(!bFilter[i].get(BloomFilter.probe(digest, i, setSize))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public boolean canMerge() {
+		return true;
+	}
+	
+	public void union(BloomFilter other) {
+		MultiMultiBloomFilter o = compatible(other);
+		for(int i = 0; i < numHashes; i++) {
+			bFilter[i].or(o.bFilter[i]);
+		}
+		dataSize += o.dataSize;
+	}
+	
+	public BloomFilter emptyCopy() {
+		return new MultiMultiBloomFilter(this);
+	}
+	
+	public void intersect(BloomFilter other) {
+		MultiMultiBloomFilter o = compatible(other);
+		for(int i = 0; i < numHashes; i++) {
+			bFilter[i].and(o.bFilter[i]);
+		}
+		dataSize = Math.min(dataSize, o.dataSize);
+	}
+	
+	/**
+	 * Estimates the number of distinct keys added from the number of set bits. Each table is hashed
+	 * by one function, so every table gives its own estimate and their mean is returned.
+	 * @return
+	 */
+	public double estimateCardinality() {
+		double sum = 0;
+		for(int i = 0; i < numHashes; i++) {
+			sum += BloomFilter.estimateFromBits(bFilter[i].cardinality(), setSize, 1);
+		}
+		return sum / numHashes;
+	}
+	
+	public boolean countsBits() {
+		return true;
+	}
+	
+	/**
+	 * Returns the number of set bits over all tables.
+	 * @return
+	 */
+	public long bitsSet() {
+		long set = 0;
+		for(int i = 0; i < numHashes; i++) {
+			set += bFilter[i].cardinality();
+		}
+		return set;
+	}
+	
+	/**
+	 * Returns the false positive rate expected for dataSize() keys. Each key sets one bit in each
+	 * table, so this is (1 - e^(-n/t))^k for tables of t bits.
+	 * @return
+	 */
+	public double expectedFalsePositiveRate() {
+		return Math.pow(BloomFilter.falsePositiveRate(setSize, 1, dataSize), numHashes);
+	}
+	
+	/**
+	 * Estimates the false positive rate as the product over the tables of the fraction of bits set.
+	 * @return
+	 */
+	public double estimateFalsePositiveRate() {
+		double rate = 1;
+		for(int i = 0; i < numHashes; i++) {
+			rate *= (double) bFilter[i].cardinality() / setSize;
+		}
+		return rate;
+	}
+	
+	private MultiMultiBloomFilter compatible(BloomFilter other) {
+		return BloomFilter.compatible(this, other, (a, b) -> a.setSize == b.setSize && Arrays.deepEquals(a.abValues, b.abValues));
+	}
+	
 	/**
 	 * Returns the size of the filter.
 	 * @return
 	 */
-	public int filterSize() {
+	public long filterSize() {
 		return filterSize;
 	}
 	
@@ -107,26 +252,13 @@ public class MultiMultiBloomFilter {
 	}
 	
 	/**
-	 * Gets the next prime higher than n. Used to increase filterSize to out prime selection.
+	 * Gets the next prime higher than n. Used to increase filterSize to out prime selection. Found
+	 * with FilterSizing.nextPrime.
 	 * @param n
 	 * @return
 	 */
 	public int primeOverM(int n) {
-		int nextPrime = 0;
-		
-		for(int i = n + 1; i < n * 2; i++) {
-			for(int j = 2; j < i/2; j++) {
-				if(i % j == 0) {
-					break;
-				}else if(j == (i/2)-1) {
-					nextPrime = i;
-				}
-			}
-			if(nextPrime != 0) {
-				return nextPrime;
-			}
-		}
-	    return nextPrime;
+		return Math.toIntExact(FilterSizing.nextPrime(n));
 	}
 	
 	/**
@@ -0,0 +1,92 @@
+/**
+ * 
+ * MurmurHash3 x64 128-bit hash strategy (seed 0). The first 64 bits of the 128-bit result are used
+ * as the digest.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class Murmur3HashStrategy implements HashStrategy {
+	
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	//the tail switch falls through on purpose, as in the reference MurmurHash3_x64_128
+	@SuppressWarnings("fallthrough")
+	@Override
+	public long hashFolded(byte[] buf, int off, int len) {
+		long h1 = 0, h2 = 0;
+		int end = off + len;
+		int i = off;
+		for(; i + 16 <= end; i += 16) {
+			long k1 = KeyBytes.getLong(buf, i);
+			long k2 = KeyBytes.getLong(buf, i + 8);
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+		
+		long k1 = 0, k2 = 0;
+		switch(end - i) {
+			case 15: k2 ^= (long) KeyBytes.fold(buf[i + 14]) << 48;
+			case 14: k2 ^= (long) KeyBytes.fold(buf[i + 13]) << 40;
+			case 13: k2 ^= (long) KeyBytes.fold(buf[i + 12]) << 32;
+			case 12: k2 ^= (long) KeyBytes.fold(buf[i + 11]) << 24;
+			case 11: k2 ^= (long) KeyBytes.fold(buf[i + 10]) << 16;
+			case 10: k2 ^= (long) KeyBytes.fold(buf[i + 9]) << 8;
+			case 9: k2 ^= (long) KeyBytes.fold(buf[i + 8]);
+				h2 ^= mixK2(k2);
+			case 8: k1 ^= (long) KeyBytes.fold(buf[i + 7]) << 56;
+			case 7: k1 ^= (long) KeyBytes.fold(buf[i + 6]) << 48;
+			case 6: k1 ^= (long) KeyBytes.fold(buf[i + 5]) << 40;
+			case 5: k1 ^= (long) KeyBytes.fold(buf[i + 4]) << 32;
+			case 4: k1 ^= (long) KeyBytes.fold(buf[i + 3]) << 24;
+			case 3: k1 ^= (long) KeyBytes.fold(buf[i + 2]) << 16;
+			case 2: k1 ^= (long) KeyBytes.fold(buf[i + 1]) << 8;
+			case 1: k1 ^= (long) KeyBytes.fold(buf[i]);
+				h1 ^= mixK1(k1);
+			default:
+				break;
+		}
+		
+		h1 ^= len;
+		h2 ^= len;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		return h1;
+	}
+	
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		return k1 * C2;
+	}
+	
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		return k2 * C1;
+	}
+	
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+	
+	@Override
+	public String toString() {
+		return "Murmur3-128";
+	}
+}
@@ -1,5 +1,4 @@
 import java.util.Arrays;
-import java.util.BitSet;
 
 /**
  * 
@@ -9,10 +8,12 @@ import java.util.BitSet;
  * @author Brad Warren bawarren@iastate.edu
  *
  */
-public class NaiveBloomFilter {
+public class NaiveBloomFilter implements BloomFilter {
 
-	private int filterSize, dataSize, numHashes, A, B;
-	private BitSet bFilter;
+	private long filterSize;
+	private int dataSize, numHashes, A, B;
+	private BitArray bFilter;
+	private HashStrategy strategy;
 	
 	/**
 	 * creates a Bloom filter with one array as its table and one random hash function. 
@@ -22,14 +23,43 @@ public class NaiveBloomFilter {
 	 * @param bitsPerElement
 	 */
 	public NaiveBloomFilter(int setSize, int bitsPerElement){
-		filterSize = setSize * bitsPerElement;
-		numHashes = (int) Math.ceil(Math.log(2) * (filterSize/setSize));
-		filterSize = primeOverM(filterSize);
-		bFilter = new BitSet(filterSize);
+		this(setSize, bitsPerElement, null);
+	}
+	
+	/**
+	 * creates a Bloom filter with one array as its table whose single hash function is a 64-bit
+	 * digest of the key computed by strategy. A null strategy keeps the random A*h+B hash function,
+	 * which can only address an int sized table; with a strategy the filter may exceed 2^31 bits.
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @param strategy
+	 */
+	public NaiveBloomFilter(int setSize, int bitsPerElement, HashStrategy strategy){
+		this.strategy = strategy;
+		FilterSizing size = FilterSizing.forBitsPerElement(setSize, bitsPerElement);
+		filterSize = size.bits();
+		numHashes = size.numHashes();
+		if(strategy == null && filterSize >= Integer.MAX_VALUE / 2) {
+			throw new IllegalArgumentException("a filter of " + filterSize + " bits needs a HashStrategy");
+		}
+		bFilter = new BitArray(filterSize);
 		A = (int) (Math.random() * filterSize);
 		B = (int) (Math.random() * filterSize);
 	}
 	
+	/**
+	 * Creates an empty filter with the size and hash functions of template.
+	 * @param template
+	 */
+	private NaiveBloomFilter(NaiveBloomFilter template){
+		filterSize = template.filterSize;
+		numHashes = template.numHashes;
+		A = template.A;
+		B = template.B;
+		strategy = template.strategy;
+		bFilter = new BitArray(filterSize);
+	}
+	
 	/**
 	 * Adds  the  strings to  the  filter.   Type  of  this  method  is  void.   
 	 * This  method should be case-insensitive.  For example, it should not distinguish between “Galaxy” 
@@ -40,6 +70,10 @@ public class NaiveBloomFilter {
 		if(s == null) {
 			return;
 		}
+		if(strategy != null) {
+			addDigest(strategy.hash(s));
+			return;
+		}
 		//make string not case sensitive
 		String str = s.toLowerCase();
 		
@@ -48,6 +82,7 @@ public class NaiveBloomFilter {
 			hash = hash(str);
 			bFilter.set(Math.abs(hash));
 		}
+		dataSize++;
 	}
 	
 	/**
@@ -60,6 +95,9 @@ public class NaiveBloomFilter {
 		if(s == null) {
 			return false;
 		}
+		if(strategy != null) {
+			return appearsDigest(strategy.hash(s));
+		}
 		//make string not case sensitive
 		s = s.toLowerCase();
 		
@@ -75,11 +113,83 @@ public class NaiveBloomFilter {
 		return true;
 	}
 	
+	public HashStrategy strategy() {
+		return strategy;
+	}
+	
+	public void addDigest(long digest) {
+		//one hash function, so every one of the k probes lands on the same bit
+		bFilter.setProbes(digest, 1);
+		dataSize++;
+	}
+	
+	public boolean appearsDigest(long digest) {
+		return bFilter.getProbes(digest, 1);
+	}
+	
+	public boolean canMerge() {
+		return true;
+	}
+	
+	public void union(BloomFilter other) {
+		NaiveBloomFilter o = compatible(other);
+		bFilter.or(o.bFilter);
+		dataSize += o.dataSize;
+	}
+	
+	public BloomFilter emptyCopy() {
+		return new NaiveBloomFilter(this);
+	}
+	
+	public void intersect(BloomFilter other) {
+		NaiveBloomFilter o = compatible(other);
+		bFilter.and(o.bFilter);
+		dataSize = Math.min(dataSize, o.dataSize);
+	}
+	
+	/**
+	 * Estimates the number of distinct keys added from the number of set bits. Every probe of a key
+	 * lands on the same bit, so each key sets one bit.
+	 * @return
+	 */
+	public double estimateCardinality() {
+		return BloomFilter.estimateFromBits(bFilter.cardinality(), filterSize, 1);
+	}
+	
+	public boolean countsBits() {
+		return true;
+	}
+	
+	public long bitsSet() {
+		return bFilter.cardinality();
+	}
+	
+	/**
+	 * Returns the false positive rate expected for dataSize() keys. Every probe of a key lands on the
+	 * same bit, so this is the rate of a single hash function: 1 - e^(-n/m).
+	 * @return
+	 */
+	public double expectedFalsePositiveRate() {
+		return BloomFilter.falsePositiveRate(filterSize, 1, dataSize);
+	}
+	
+	/**
+	 * Estimates the false positive rate as the fraction of bits set, since a key has one bit.
+	 * @return
+	 */
+	public double estimateFalsePositiveRate() {
+		return (double) bFilter.cardinality() / filterSize;
+	}
+	
+	private NaiveBloomFilter compatible(BloomFilter other) {
+		return BloomFilter.compatible(this, other, (a, b) -> a.A == b.A && a.B == b.B);
+	}
+	
 	/**
 	 * Returns the size of the filter.
 	 * @return
 	 */
-	public int filterSize() {
+	public long filterSize() {
 		return filterSize;
 	}
 	
@@ -100,26 +210,13 @@ public class NaiveBloomFilter {
 	}
 	
 	/**
-	 * Gets the next prime higher than n. Used to increase filterSize to out prime selection.
+	 * Gets the next prime higher than n. Used to increase filterSize to out prime selection. Found
+	 * with FilterSizing.nextPrime.
 	 * @param n
 	 * @return
 	 */
 	public int primeOverM(int n) {
-		int nextPrime = 0;
-		
-		for(int i = n + 1; i < n * 2; i++) {
-			for(int j = 2; j < i/2; j++) {
-				if(i % j == 0) {
-					break;
-				}else if(j == (i/2)-1) {
-					nextPrime = i;
-				}
-			}
-			if(nextPrime != 0) {
-				return nextPrime;
-			}
-		}
-	    return nextPrime;
+		return Math.toIntExact(FilterSizing.nextPrime(n));
 	}
 	
 	/**
@@ -128,6 +225,6 @@ public class NaiveBloomFilter {
 	 * @return
 	 */
 	public int hash(String s) {
-		return ((A*s.hashCode()+B)%filterSize);
+		return (int) ((A*s.hashCode()+B)%filterSize);
 	}
 }
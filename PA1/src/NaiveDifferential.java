@@ -1,24 +1,24 @@
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.Hashtable;
-import java.util.Random;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
- * Like BloomDifferential, however this class uses a hashtable instead of a generated Bloom filter in order
- * to store record of DiffFile.txt. 
+ * Like BloomDifferential, however this class uses an exact set of keys instead of a generated Bloom
+ * filter in order to store record of DiffFile.txt. The set holds the full four token key of every
+ * record, so a key is looked up in DiffFile.txt exactly when it has a record there.
  * 
  * @author Brad Warren bawarren@iastate.edu
  *
  */
 public class NaiveDifferential {
 	 
-	private Hashtable<String,Integer> bFilter = new Hashtable<String,Integer>();
+	private ExactKeySet keySet;
+	private RecordFiles files;
 	private File difFile, dataFile;
-	private Random ran;
 	
 	/**
-	 * Sets values of the hashtable to records in DiffFile.txt with random numbers assigned to them.
+	 * Fills the key set with the keys of the records in DiffFile.txt.
 	 * 
 	 * @param difFileName
 	 * @param dataFileName
@@ -27,39 +27,41 @@ public class NaiveDifferential {
 	public NaiveDifferential(String difFileName, String dataFileName) throws FileNotFoundException{
 		difFile = new File(difFileName);
 		dataFile = new File(dataFileName);
-		ran = new Random(214748364); //largest possible integer value
+		files = new RecordFiles(difFile, dataFile);
 		createFilter();
 	}
 	
 	/**
-	 * Returns a Bloom Filter corresponding to the records in the differential fileDiffFile.txt.
+	 * Fills the key set with the key of every record in the differential file DiffFile.txt: its
+	 * first four tokens joined by single spaces.
 	 * @throws FileNotFoundException
 	 */
 	public void createFilter() throws FileNotFoundException {
-		Scanner sc = new Scanner(difFile);
-		 while(sc.hasNextLine()) {
-			 String record = sc.nextLine();
-			 Scanner s = new Scanner(record);
-			 String temp = "";
-			 int count = 0;
-			 while(s.hasNext()) {
-				 temp = s.next();
-				 if(count == 4) {
-					 s.close();
-					 break;
-				 }
-				 if(!bFilter.contains(s)) {
-					 bFilter.put(temp, ran.nextInt());
-				 }
-				 count++;
-			 }
-		 }
-		 sc.close();
+		if(!difFile.exists()) {
+			throw new FileNotFoundException(difFile.getPath());
+		}
+		try {
+			MappedRecordScanner scanner = new MappedRecordScanner(difFile);
+			keySet = new ExactKeySet((int) Math.min(Integer.MAX_VALUE, difFile.length() / 32));
+			for(int c = 0; c < scanner.chunkCount(); c++) {
+				scanner.forEachKeyBytes(c, keySet::add);
+			}
+		}catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Returns the set of DiffFile.txt keys.
+	 * @return
+	 */
+	public ExactKeySet getKeySet() {
+		return keySet;
 	}
 	
 	/**
 	 * Gets a key as parameter and returns the record corresponding to the record 
-	 * by consulting the hashtable first.
+	 * by consulting the key set first.
 	 * @param key
 	 * @return
 	 * @throws FileNotFoundException
@@ -68,17 +70,17 @@ public class NaiveDifferential {
 		if(key == null) {
 			return null;
 		}
-		
-		Scanner sc = new Scanner(key);
-		boolean check = true;
-		for(int i = 0; i < 4; i++) {
-			if(!bFilter.contains(sc.next())) {
-				check = false;
-			}
-		}
-		sc.close();
-		
-		if(check == true) {
+		return files.retrieve(key, this::findRecord);
+	}
+	
+	/**
+	 * Looks up the record of key in the files, bypassing the cache.
+	 * @param key
+	 * @return
+	 * @throws FileNotFoundException
+	 */
+	private String findRecord(String key) throws FileNotFoundException {
+		if(keySet.contains(key.trim())) {
 			String record = checkFileForKey(key,difFile);
 			if(record != null) {
 				return record;
@@ -93,32 +95,51 @@ public class NaiveDifferential {
 	}
 	
 	/**
-	 * Checks if the file contains the specified key.
+	 * Puts cache in front of retrieveRecord, so repeated lookups, including ones that end in
+	 * "record not found", are answered from memory. Pass null to stop caching.
+	 * @param cache
+	 */
+	public void setRecordCache(RecordCache cache) {
+		files.setCache(cache);
+	}
+	
+	/**
+	 * Returns the record cache, or null when lookups are not cached.
+	 * @return
+	 */
+	public RecordCache getRecordCache() {
+		return files.getCache();
+	}
+	
+	/**
+	 * Indexes DiffFile.txt and database.txt by key, keeping the indexes in difIndexName and
+	 * dataIndexName between runs. Afterwards retrieveRecord finds a record with one positioned read
+	 * instead of scanning the whole file. An index is rebuilt when its file has changed.
+	 * @param difIndexName
+	 * @param dataIndexName
+	 * @throws IOException
+	 */
+	public void useIndexes(String difIndexName, String dataIndexName) throws IOException {
+		files.useIndexes(difIndexName, dataIndexName);
+	}
+	
+	/**
+	 * Releases the files held open by the indexes.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		files.close();
+	}
+	
+	/**
+	 * Checks if the file contains the specified key. Uses the file's RecordIndex when useIndexes
+	 * was called, otherwise scans the memory-mapped file with a MappedRecordScanner.
 	 * @param key
 	 * @param file
 	 * @return
 	 * @throws FileNotFoundException
 	 */
 	public String checkFileForKey(String key, File file) throws FileNotFoundException {
-		Scanner sc = new Scanner(file);
-		while(sc.hasNextLine()) {
-			String record = sc.nextLine();
-			Scanner s = new Scanner(record);
-			String temp = "";
-			int count = 0;
-			while(s.hasNext()) {
-				if(count == 4) {
-					s.close();
-					if(temp.trim().equals(key.trim())){
-						return record.trim();
-					}
-					break;
-				}
-				temp += s.next() + " ";
-				count++;
-			}
-		}
-		sc.close();
-		return null;
+		return files.find(key, file);
 	}
-}
+}
\ No newline at end of file
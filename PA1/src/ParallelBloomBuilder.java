@@ -0,0 +1,127 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * 
+ * Fills a Bloom filter from many keys on a ForkJoinPool. The keys are split into one part per
+ * worker thread and every part is added to its own empty copy of the filter, so the threads never
+ * write to shared bits. The copies are then merged pairwise with union, half of the merges running
+ * in parallel at each level, until all keys are in the filter that was passed in.
+ * 
+ * Any filter whose canMerge is true can be built this way. Each worker holds one copy of the filter
+ * while it is built. Other filters, such as a ScalableBloomFilter, are filled by the calling thread.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public final class ParallelBloomBuilder {
+	
+	private static final int BATCH = 1024;
+	
+	private ParallelBloomBuilder() {
+	}
+	
+	/**
+	 * Adds every non-null key in keys to filter on the common ForkJoinPool.
+	 * @param filter
+	 * @param keys
+	 * @return filter
+	 */
+	public static <T extends BloomFilter> T build(T filter, String keys[]) {
+		return build(filter, keys, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Adds every non-null key in keys to filter on pool.
+	 * @param filter
+	 * @param keys
+	 * @param pool
+	 * @return filter
+	 */
+	public static <T extends BloomFilter> T build(T filter, String keys[], ForkJoinPool pool) {
+		int parts = Math.max(1, Math.min(pool.getParallelism(), keys.length / BATCH));
+		return build(filter, parts, pool, (part, p) -> {
+			int start = (int) ((long) keys.length * p / parts), end = (int) ((long) keys.length * (p + 1) / parts);
+			part.addAll(Arrays.copyOfRange(keys, start, end));
+		});
+	}
+	
+	/**
+	 * Adds the key of every record in recordFile, such as DiffFile.txt, to filter on pool. The file is
+	 * memory-mapped and its line aligned chunks are divided among the workers; a record's key is its
+	 * first four tokens joined by single spaces. Keys go to the filter as bytes straight from the
+	 * mapped file, without creating Strings.
+	 * @param filter
+	 * @param recordFile
+	 * @param pool
+	 * @return filter
+	 * @throws IOException
+	 */
+	public static <T extends BloomFilter> T build(T filter, File recordFile, ForkJoinPool pool) throws IOException {
+		MappedRecordScanner scanner = new MappedRecordScanner(recordFile, pool);
+		int chunks = scanner.chunkCount();
+		int parts = Math.max(1, Math.min(pool.getParallelism(), chunks));
+		return build(filter, parts, pool, (part, p) -> {
+			for(int c = chunks * p / parts; c < chunks * (p + 1) / parts; c++) {
+				scanner.forEachKeyBytes(c, part::add);
+			}
+		});
+	}
+	
+	/**
+	 * Runs fill for parts 0 to parts - 1, part 0 into filter and the rest into empty copies, and
+	 * unions the copies into filter. A filter that cannot be merged gets every part in turn.
+	 * @param filter
+	 * @param parts
+	 * @param pool
+	 * @param fill - adds part p's keys to the given filter
+	 * @return filter
+	 */
+	private static <T extends BloomFilter> T build(T filter, int parts, ForkJoinPool pool, ObjIntConsumer<BloomFilter> fill) {
+		if(parts == 1 || !filter.canMerge()) {
+			for(int p = 0; p < parts; p++) {
+				fill.accept(filter, p);
+			}
+		}else {
+			pool.invoke(new Fill(filter, 0, parts, fill));
+		}
+		return filter;
+	}
+	
+	/**
+	 * Fills the parts [lo, hi) into target, forking the upper half into an empty copy that is merged
+	 * back once both halves are done.
+	 */
+	private static class Fill extends RecursiveTask<BloomFilter> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private BloomFilter target;
+		private int lo, hi;
+		private ObjIntConsumer<BloomFilter> fill;
+		
+		Fill(BloomFilter target, int lo, int hi, ObjIntConsumer<BloomFilter> fill) {
+			this.target = target;
+			this.lo = lo;
+			this.hi = hi;
+			this.fill = fill;
+		}
+		
+		protected BloomFilter compute() {
+			if(hi - lo == 1) {
+				fill.accept(target, lo);
+				return target;
+			}
+			int mid = (lo + hi) >>> 1;
+			Fill upper = new Fill(target.emptyCopy(), mid, hi, fill);
+			upper.fork();
+			new Fill(target, lo, mid, fill).compute();
+			target.union(upper.join());
+			return target;
+		}
+	}
+}
@@ -0,0 +1,325 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 
+ * Static map from the keys of a record file such as DiffFile.txt to the byte offsets of their
+ * records. Keys are numbered 0 to n - 1 by a minimal perfect hash (BBHash: a cascade of bit arrays
+ * where each key claims the bit no other remaining key hashes to, and a key's number is the rank of
+ * its bit), taking about 3.5 bits per key. The offsets are packed into an array indexed by that
+ * number, using just the bits the file length needs.
+ * 
+ * Finding a key computes its number, reads the one line at its offset and compares keys, so the
+ * cost does not depend on the size of the file. A key that is not in the file also reads one line,
+ * which does not match; no Bloom filter check is needed first.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class PerfectHashIndex {
+	
+	private static final HashStrategy HASH = HashStrategy.MURMUR3;
+	private static final double GAMMA = 2.0;
+	private static final int MAX_LEVELS = 32;
+	private static final int RANK_WORDS = 8;
+	
+	private File dataFile;
+	private long sourceLength, sourceModified;
+	private int levels, size;
+	private long levelStart[], levelBits[];
+	private long bits[];
+	private int ranks[];
+	private Map<Long,Integer> leftovers = new HashMap<Long,Integer>();
+	private int offsetWidth;
+	private long packedOffsets[];
+	private Map<Long,long[]> collisions = new HashMap<Long,long[]>();
+	private FileChannel channel;
+	
+	/**
+	 * Indexes every record of dataFile. When several records share a key the first one is found,
+	 * as with a scan.
+	 * @param dataFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static PerfectHashIndex build(File dataFile) throws IOException {
+		return new PerfectHashIndex(dataFile, RecordIndex.build(dataFile));
+	}
+	
+	/**
+	 * Builds the hash over the distinct key hashes of index. Each hash maps to its first record;
+	 * a hash shared by differently spelled keys also keeps the first record of each of them.
+	 * @param dataFile
+	 * @param index
+	 * @throws IOException
+	 */
+	private PerfectHashIndex(File dataFile, RecordIndex index) throws IOException {
+		this.dataFile = dataFile;
+		sourceLength = dataFile.length();
+		sourceModified = dataFile.lastModified();
+		long hashes[] = index.hashes(), offsets[] = index.offsets();
+		
+		int distinct = 0;
+		long keys[] = new long[hashes.length], first[] = new long[hashes.length];
+		for(int i = 0; i < hashes.length; ) {
+			int j = i + 1;
+			while(j < hashes.length && hashes[j] == hashes[i]) {
+				j++;
+			}
+			keys[distinct] = hashes[i];
+			first[distinct++] = offsets[i];
+			if(j - i > 1) {
+				keepCollisions(hashes[i], offsets, i, j);
+			}
+			i = j;
+		}
+		size = distinct;
+		buildHash(keys, distinct);
+		
+		offsetWidth = Math.max(1, 64 - Long.numberOfLeadingZeros(sourceLength));
+		packedOffsets = new long[(int) (((long) size * offsetWidth + 63) >>> 6)];
+		for(int k = 0; k < distinct; k++) {
+			setOffset(number(keys[k]), first[k]);
+		}
+	}
+	
+	/**
+	 * Reads the records at offsets[from] to offsets[to - 1], which share hash, and keeps the first
+	 * record of each distinct key among them when there is more than one. Repeats of a single key
+	 * keep nothing, since the first record is already in the offset array.
+	 * @param hash
+	 * @param offsets
+	 * @param from
+	 * @param to
+	 * @throws IOException
+	 */
+	private void keepCollisions(long hash, long offsets[], int from, int to) throws IOException {
+		List<String> keys = new ArrayList<String>();
+		List<Long> firsts = new ArrayList<Long>();
+		for(int i = from; i < to; i++) {
+			String key = RecordIndex.keyOf(RecordIndex.readLine(channel(), offsets[i]));
+			if(!keys.contains(key)) {
+				keys.add(key);
+				firsts.add(offsets[i]);
+			}
+		}
+		if(firsts.size() > 1) {
+			long all[] = new long[firsts.size()];
+			for(int i = 0; i < all.length; i++) {
+				all[i] = firsts.get(i);
+			}
+			collisions.put(hash, all);
+		}
+	}
+	
+	/**
+	 * Builds the levels of bit arrays for the first n of keys. At each level the keys still
+	 * unplaced are hashed into GAMMA bits per key; a bit hit by exactly one key is kept for that key
+	 * and the keys that collided move on to the next level.
+	 * @param keys
+	 * @param n
+	 */
+	private void buildHash(long keys[], int n) {
+		long remaining[] = keys.clone();
+		int count = n;
+		levelStart = new long[MAX_LEVELS + 1];
+		levelBits = new long[MAX_LEVELS];
+		long levelArrays[][] = new long[MAX_LEVELS][];
+		long totalWords = 0;
+		for(levels = 0; levels < MAX_LEVELS && count > 0; levels++) {
+			long m = Math.max(64, ((long) Math.ceil(count * GAMMA) + 63) & ~63L);
+			long seen[] = new long[(int) (m >>> 6)], collided[] = new long[seen.length];
+			for(int k = 0; k < count; k++) {
+				long pos = position(remaining[k], levels, m);
+				long bit = 1L << pos;
+				int w = (int) (pos >>> 6);
+				if((seen[w] & bit) != 0) {
+					collided[w] |= bit;
+				}
+				seen[w] |= bit;
+			}
+			for(int w = 0; w < seen.length; w++) {
+				seen[w] &= ~collided[w];
+			}
+			int next = 0;
+			for(int k = 0; k < count; k++) {
+				long pos = position(remaining[k], levels, m);
+				if((collided[(int) (pos >>> 6)] & (1L << pos)) != 0) {
+					remaining[next++] = remaining[k];
+				}
+			}
+			count = next;
+			levelArrays[levels] = seen;
+			levelBits[levels] = m;
+			levelStart[levels] = totalWords << 6;
+			totalWords += seen.length;
+		}
+		levelStart[levels] = totalWords << 6;
+		
+		bits = new long[(int) totalWords];
+		for(int l = 0, w = 0; l < levels; l++) {
+			System.arraycopy(levelArrays[l], 0, bits, w, levelArrays[l].length);
+			w += levelArrays[l].length;
+		}
+		ranks = new int[bits.length / RANK_WORDS + 1];
+		int rank = 0;
+		for(int w = 0; w < bits.length; w++) {
+			if(w % RANK_WORDS == 0) {
+				ranks[w / RANK_WORDS] = rank;
+			}
+			rank += Long.bitCount(bits[w]);
+		}
+		
+		//keys still colliding after the last level are numbered after the rest
+		for(int k = 0; k < count; k++) {
+			leftovers.put(remaining[k], rank + k);
+		}
+	}
+	
+	/**
+	 * Returns the first record whose key equals key, trimmed, or null if there is none.
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public String find(String key) throws IOException {
+		key = key.trim();
+		long hash = HASH.hash(key);
+		int number = number(hash);
+		if(number >= 0) {
+			String record = RecordIndex.readLine(channel(), getOffset(number));
+			if(key.equals(RecordIndex.keyOf(record))) {
+				return record.trim();
+			}
+			long all[] = collisions.get(hash);
+			if(all != null) {
+				for(long offset : all) {
+					record = RecordIndex.readLine(channel(), offset);
+					if(key.equals(RecordIndex.keyOf(record))) {
+						return record.trim();
+					}
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the number in [0, size) of a key hash that was indexed, an arbitrary number in that
+	 * range or -1 for one that was not.
+	 * @param hash
+	 * @return
+	 */
+	private int number(long hash) {
+		for(int l = 0; l < levels; l++) {
+			long pos = levelStart[l] + position(hash, l, levelBits[l]);
+			long word = bits[(int) (pos >>> 6)];
+			if((word & (1L << pos)) != 0) {
+				return rank(pos);
+			}
+		}
+		Integer leftover = leftovers.get(hash);
+		return leftover == null ? -1 : leftover;
+	}
+	
+	/**
+	 * Returns the number of set bits before pos.
+	 * @param pos
+	 * @return
+	 */
+	private int rank(long pos) {
+		int w = (int) (pos >>> 6);
+		int rank = ranks[w / RANK_WORDS];
+		for(int i = w - w % RANK_WORDS; i < w; i++) {
+			rank += Long.bitCount(bits[i]);
+		}
+		return rank + Long.bitCount(bits[w] & ((1L << pos) - 1));
+	}
+	
+	/**
+	 * Returns the bit of hash at level, in [0, m).
+	 * @param hash
+	 * @param level
+	 * @param m
+	 * @return
+	 */
+	private static long position(long hash, int level, long m) {
+		long h = hash + (level + 1) * 0x9e3779b97f4a7c15L;
+		h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+		h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return Long.remainderUnsigned(h, m);
+	}
+	
+	private long getOffset(int number) {
+		long bit = (long) number * offsetWidth;
+		int w = (int) (bit >>> 6), shift = (int) (bit & 63);
+		long value = packedOffsets[w] >>> shift;
+		if(shift + offsetWidth > 64) {
+			value |= packedOffsets[w + 1] << (64 - shift);
+		}
+		return offsetWidth == 64 ? value : value & ((1L << offsetWidth) - 1);
+	}
+	
+	private void setOffset(int number, long offset) {
+		long bit = (long) number * offsetWidth;
+		int w = (int) (bit >>> 6), shift = (int) (bit & 63);
+		packedOffsets[w] |= offset << shift;
+		if(shift + offsetWidth > 64) {
+			packedOffsets[w + 1] |= offset >>> (64 - shift);
+		}
+	}
+	
+	/**
+	 * Returns true if the data file has been modified since it was indexed.
+	 * @return
+	 */
+	public boolean isStale() {
+		return dataFile.length() != sourceLength || dataFile.lastModified() != sourceModified;
+	}
+	
+	/**
+	 * Returns the number of distinct keys indexed.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the bits per key of the perfect hash, not counting the offsets.
+	 * @return
+	 */
+	public double bitsPerKey() {
+		return size == 0 ? 0 : (bits.length * 64.0 + ranks.length * 32.0) / size;
+	}
+	
+	/**
+	 * Releases the open data file.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if(channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+	
+	/**
+	 * Returns the data file channel, opening it on first use.
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized FileChannel channel() throws IOException {
+		if(channel == null) {
+			channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+		}
+		return channel;
+	}
+}
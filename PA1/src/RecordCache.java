@@ -0,0 +1,229 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 
+ * Bounded record cache with W-TinyLFU admission and eviction, meant to sit in front of
+ * BloomDifferential and NaiveDifferential. New entries enter a small LRU window (1% of the
+ * capacity). An entry pushed out of the window is admitted to the main segmented LRU only if a
+ * Count-Min sketch of recent key frequencies says it is used more often than the entry it would
+ * evict, so a burst of one-off keys cannot flush out the hot ones. Main space is split into a
+ * probation segment (20%) for entries seen once and a protected segment (80%) for entries hit
+ * again. Values are stored as returned by retrieveRecord, so "record not found" answers are cached
+ * like any other. All methods are synchronized.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class RecordCache {
+	
+	private int windowCapacity, probationCapacity, protectedCapacity;
+	private LinkedHashMap<String,String> window = new LinkedHashMap<String,String>(16, 0.75f, true);
+	private LinkedHashMap<String,String> probation = new LinkedHashMap<String,String>(16, 0.75f, true);
+	private LinkedHashMap<String,String> protectedSegment = new LinkedHashMap<String,String>(16, 0.75f, true);
+	private FrequencySketch sketch;
+	private long hits, misses, evictions;
+	
+	/**
+	 * Creates a cache holding at most capacity records.
+	 * @param capacity
+	 */
+	public RecordCache(int capacity) {
+		if(capacity < 2) {
+			throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+		}
+		windowCapacity = Math.max(1, capacity / 100);
+		int mainCapacity = capacity - windowCapacity;
+		protectedCapacity = (int) (mainCapacity * 0.8);
+		probationCapacity = mainCapacity - protectedCapacity;
+		sketch = new FrequencySketch(capacity);
+	}
+	
+	/**
+	 * Returns the cached record of key, or null when key is not cached.
+	 * @param key
+	 * @return
+	 */
+	public synchronized String get(String key) {
+		sketch.increment(key);
+		String value = window.get(key);
+		if(value == null) {
+			value = protectedSegment.get(key);
+		}
+		if(value == null) {
+			value = probation.remove(key);
+			if(value != null) {
+				//second hit, promote to protected and demote its least recent entry if full
+				protectedSegment.put(key, value);
+				if(protectedSegment.size() > protectedCapacity) {
+					Map.Entry<String,String> eldest = removeEldest(protectedSegment);
+					probation.put(eldest.getKey(), eldest.getValue());
+				}
+			}
+		}
+		if(value == null) {
+			misses++;
+		}else {
+			hits++;
+		}
+		return value;
+	}
+	
+	/**
+	 * Caches value as the record of key.
+	 * @param key
+	 * @param value
+	 */
+	public synchronized void put(String key, String value) {
+		if(key == null || value == null) {
+			return;
+		}
+		if(protectedSegment.containsKey(key)) {
+			protectedSegment.put(key, value);
+			return;
+		}
+		if(probation.containsKey(key)) {
+			probation.put(key, value);
+			return;
+		}
+		window.put(key, value);
+		if(window.size() <= windowCapacity) {
+			return;
+		}
+		
+		Map.Entry<String,String> candidate = removeEldest(window);
+		if(probation.size() + protectedSegment.size() < probationCapacity + protectedCapacity) {
+			probation.put(candidate.getKey(), candidate.getValue());
+			return;
+		}
+		LinkedHashMap<String,String> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+		String victim = victimSegment.keySet().iterator().next();
+		if(sketch.frequency(candidate.getKey()) > sketch.frequency(victim)) {
+			victimSegment.remove(victim);
+			probation.put(candidate.getKey(), candidate.getValue());
+		}
+		evictions++;
+	}
+	
+	/**
+	 * Drops every cached record. Key frequencies are kept, they still describe the traffic.
+	 */
+	public synchronized void invalidateAll() {
+		window.clear();
+		probation.clear();
+		protectedSegment.clear();
+	}
+	
+	/**
+	 * Returns the number of records cached.
+	 * @return
+	 */
+	public synchronized int size() {
+		return window.size() + probation.size() + protectedSegment.size();
+	}
+	
+	/**
+	 * Returns the number of get calls that found a record.
+	 * @return
+	 */
+	public synchronized long hitCount() {
+		return hits;
+	}
+	
+	/**
+	 * Returns the number of get calls that found nothing.
+	 * @return
+	 */
+	public synchronized long missCount() {
+		return misses;
+	}
+	
+	/**
+	 * Returns the number of records evicted or refused admission.
+	 * @return
+	 */
+	public synchronized long evictionCount() {
+		return evictions;
+	}
+	
+	/**
+	 * Returns hits / (hits + misses), or 0 before the first get.
+	 * @return
+	 */
+	public synchronized double hitRate() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+	
+	private static Map.Entry<String,String> removeEldest(LinkedHashMap<String,String> map) {
+		Iterator<Map.Entry<String,String>> it = map.entrySet().iterator();
+		Map.Entry<String,String> eldest = it.next();
+		eldest = Map.entry(eldest.getKey(), eldest.getValue());
+		it.remove();
+		return eldest;
+	}
+	
+	/**
+	 * Count-Min sketch of key frequencies with four 4-bit counters per key, sixteen counters to a
+	 * long. Every 10 * capacity increments all counters are halved so old popularity fades.
+	 */
+	private static class FrequencySketch {
+		
+		private static final long SEEDS[] = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+		private static final long RESET_MASK = 0x7777777777777777L;
+		
+		private long table[];
+		private int sampleSize, additions;
+		
+		FrequencySketch(int capacity) {
+			table = new long[Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1];
+			sampleSize = 10 * capacity;
+		}
+		
+		void increment(String key) {
+			int hash = spread(key.hashCode());
+			boolean added = false;
+			for(int i = 0; i < 4; i++) {
+				int index = index(hash, i);
+				int shift = counterShift(hash, i);
+				if(((table[index] >>> shift) & 15) < 15) {
+					table[index] += 1L << shift;
+					added = true;
+				}
+			}
+			if(added && ++additions >= sampleSize) {
+				for(int i = 0; i < table.length; i++) {
+					table[i] = (table[i] >>> 1) & RESET_MASK;
+				}
+				additions /= 2;
+			}
+		}
+		
+		int frequency(String key) {
+			int hash = spread(key.hashCode());
+			int min = 15;
+			for(int i = 0; i < 4; i++) {
+				min = (int) Math.min(min, (table[index(hash, i)] >>> counterShift(hash, i)) & 15);
+			}
+			return min;
+		}
+		
+		private int index(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			return (int) (h >>> 40) & (table.length - 1);
+		}
+		
+		private int counterShift(int hash, int i) {
+			//each row uses its own quarter of the sixteen counters in a word
+			return ((i << 2) + ((hash >>> (i << 3)) & 3)) << 2;
+		}
+		
+		private static int spread(int h) {
+			h ^= h >>> 17;
+			h *= 0xed5ad4bb;
+			h ^= h >>> 11;
+			h *= 0xac4c1b51;
+			return h ^ (h >>> 15);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 
+ * The two record files a differential answers lookups from, DiffFile.txt and database.txt, and
+ * what makes reading them fast: a RecordIndex of each once useIndexes is called, and otherwise a
+ * MappedRecordScanner over each, mapped again only after the file changes on disk. An optional
+ * RecordCache sits in front of the lookups.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class RecordFiles {
+	
+	/**
+	 * Finds the record of a key, bypassing the cache.
+	 */
+	public interface Lookup {
+		String find(String key) throws FileNotFoundException;
+	}
+	
+	private File difFile, dataFile;
+	private RecordIndex difIndex, dataIndex;
+	private File difIndexFile, dataIndexFile;
+	private MappedRecordScanner difScanner, dataScanner;
+	private RecordCache cache;
+	
+	/**
+	 * @param difFile
+	 * @param dataFile
+	 */
+	public RecordFiles(File difFile, File dataFile) {
+		this.difFile = difFile;
+		this.dataFile = dataFile;
+	}
+	
+	public File difFile() {
+		return difFile;
+	}
+	
+	public File dataFile() {
+		return dataFile;
+	}
+	
+	/**
+	 * Returns the record of key from the cache, or from lookup when it is not cached, caching it.
+	 * @param key
+	 * @param lookup
+	 * @return
+	 * @throws FileNotFoundException
+	 */
+	public String retrieve(String key, Lookup lookup) throws FileNotFoundException {
+		if(cache == null) {
+			return lookup.find(key);
+		}
+		String record = cache.get(key);
+		if(record == null) {
+			record = lookup.find(key);
+			cache.put(key, record);
+		}
+		return record;
+	}
+	
+	/**
+	 * Puts cache in front of retrieve. Pass null to stop caching.
+	 * @param cache
+	 */
+	public void setCache(RecordCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * Returns the record cache, or null when lookups are not cached.
+	 * @return
+	 */
+	public RecordCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * Drops every cached answer, for when what the files or filters say about a key has changed.
+	 */
+	public void invalidateCache() {
+		if(cache != null) {
+			cache.invalidateAll();
+		}
+	}
+	
+	/**
+	 * Indexes DiffFile.txt and database.txt by key, keeping the indexes in difIndexName and
+	 * dataIndexName between runs. An index is rebuilt when its file has changed, including while
+	 * it is in use.
+	 * @param difIndexName
+	 * @param dataIndexName
+	 * @throws IOException
+	 */
+	public void useIndexes(String difIndexName, String dataIndexName) throws IOException {
+		difIndexFile = new File(difIndexName);
+		dataIndexFile = new File(dataIndexName);
+		difIndex = RecordIndex.open(difFile, difIndexFile);
+		dataIndex = RecordIndex.open(dataFile, dataIndexFile);
+	}
+	
+	/**
+	 * Releases the files held open by the indexes.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if(difIndex != null) {
+			difIndex.close();
+		}
+		if(dataIndex != null) {
+			dataIndex.close();
+		}
+	}
+	
+	/**
+	 * Returns the record of key in file, or null. Uses the file's RecordIndex when useIndexes was
+	 * called, otherwise scans the memory-mapped file.
+	 * @param key
+	 * @param file
+	 * @return
+	 * @throws FileNotFoundException
+	 */
+	public String find(String key, File file) throws FileNotFoundException {
+		if(!file.exists()) {
+			throw new FileNotFoundException(file.getPath());
+		}
+		try {
+			RecordIndex index = indexOf(file);
+			if(index != null) {
+				return index.find(key);
+			}
+			return scannerFor(file).find(key);
+		}catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Checks file for all of keys at once, through the file's RecordIndex when useIndexes was called
+	 * and otherwise with one pass of a MappedRecordScanner.
+	 * @param keys
+	 * @param file
+	 * @return map from each key that was found to its record
+	 * @throws FileNotFoundException
+	 */
+	public Map<String,String> findAll(Collection<String> keys, File file) throws FileNotFoundException {
+		if(keys.isEmpty()) {
+			return new HashMap<String,String>();
+		}
+		if(!file.exists()) {
+			throw new FileNotFoundException(file.getPath());
+		}
+		try {
+			RecordIndex index = indexOf(file);
+			if(index == null) {
+				return scannerFor(file).findAll(keys);
+			}
+			Map<String,String> records = new HashMap<String,String>();
+			for(String key : keys) {
+				String record = index.find(key);
+				if(record != null) {
+					records.put(key, record);
+				}
+			}
+			return records;
+		}catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Returns the index of file, or null when file is not indexed, rebuilding DiffFile.txt's and
+	 * database.txt's index first when the file has changed since it was indexed.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized RecordIndex indexOf(File file) throws IOException {
+		if(file.equals(difFile) && difIndex != null) {
+			if(difIndex.isStale()) {
+				difIndex.close();
+				difIndex = RecordIndex.open(difFile, difIndexFile);
+			}
+			return difIndex;
+		}else if(file.equals(dataFile) && dataIndex != null) {
+			if(dataIndex.isStale()) {
+				dataIndex.close();
+				dataIndex = RecordIndex.open(dataFile, dataIndexFile);
+			}
+			return dataIndex;
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns a scanner over file, mapping DiffFile.txt and database.txt once and again only after
+	 * they change on disk.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private MappedRecordScanner scannerFor(File file) throws IOException {
+		if(file.equals(difFile)) {
+			if(difScanner == null || difScanner.isStale()) {
+				difScanner = new MappedRecordScanner(difFile);
+			}
+			return difScanner;
+		}else if(file.equals(dataFile)) {
+			if(dataScanner == null || dataScanner.isStale()) {
+				dataScanner = new MappedRecordScanner(dataFile);
+			}
+			return dataScanner;
+		}
+		return new MappedRecordScanner(file);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,388 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 
+ * Persistent index from record key to byte offset for a record file such as database.txt or
+ * DiffFile.txt. A key is the first four whitespace separated tokens of a line, as in
+ * BloomDifferential. The index is a sorted array of 64-bit key hashes with the offset of each
+ * line, so finding a record is a binary search in memory plus one positioned read of the line,
+ * whose key is then compared to rule out hash collisions.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class RecordIndex {
+	
+	private static final int MAGIC = 0x52494458;
+	private static final int VERSION = 1;
+	private static final int HEADER = 28;
+	private static final HashStrategy HASH = HashStrategy.MURMUR3;
+	
+	private File dataFile;
+	private long sourceLength, sourceModified;
+	private long hashes[], offsets[];
+	private FileChannel channel;
+	
+	private RecordIndex(File dataFile, long sourceLength, long sourceModified, long hashes[], long offsets[]) {
+		this.dataFile = dataFile;
+		this.sourceLength = sourceLength;
+		this.sourceModified = sourceModified;
+		this.hashes = hashes;
+		this.offsets = offsets;
+	}
+	
+	/**
+	 * Returns the index of dataFile kept in indexFile. The saved index is used when it was built
+	 * from the current version of dataFile; otherwise, or when it cannot be read or is truncated or
+	 * corrupt, dataFile is indexed again and indexFile is rewritten.
+	 * @param dataFile
+	 * @param indexFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static RecordIndex open(File dataFile, File indexFile) throws IOException {
+		if(indexFile.exists()) {
+			try {
+				RecordIndex index = load(dataFile, indexFile);
+				if(index.sourceLength == dataFile.length() && index.sourceModified == dataFile.lastModified()) {
+					return index;
+				}
+			}catch(IOException e) {
+				//rebuilt and rewritten below
+			}
+		}
+		RecordIndex index = build(dataFile);
+		index.save(indexFile);
+		return index;
+	}
+	
+	/**
+	 * Indexes every record of dataFile with one sequential read.
+	 * @param dataFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static RecordIndex build(File dataFile) throws IOException {
+		long modified = dataFile.lastModified();
+		long hashes[] = new long[1024], offsets[] = new long[1024];
+		int count = 0;
+		byte line[] = new byte[256], block[] = new byte[1 << 16];
+		try(InputStream in = new FileInputStream(dataFile)) {
+			long blockStart = 0, lineStart = 0;
+			int len = 0, n;
+			while((n = in.read(block)) > 0) {
+				for(int i = 0; i < n; i++) {
+					if(block[i] != '\n') {
+						if(len == line.length) {
+							line = Arrays.copyOf(line, len * 2);
+						}
+						line[len++] = block[i];
+						continue;
+					}
+					String key = keyOf(new String(line, 0, len, StandardCharsets.UTF_8));
+					if(key != null) {
+						if(count == hashes.length) {
+							hashes = Arrays.copyOf(hashes, count * 2);
+							offsets = Arrays.copyOf(offsets, count * 2);
+						}
+						hashes[count] = HASH.hash(key);
+						offsets[count] = lineStart;
+						count++;
+					}
+					lineStart = blockStart + i + 1;
+					len = 0;
+				}
+				blockStart += n;
+			}
+			//last line without a trailing newline
+			String key = len > 0 ? keyOf(new String(line, 0, len, StandardCharsets.UTF_8)) : null;
+			if(key != null) {
+				hashes = Arrays.copyOf(hashes, count + 1);
+				offsets = Arrays.copyOf(offsets, count + 1);
+				hashes[count] = HASH.hash(key);
+				offsets[count] = lineStart;
+				count++;
+			}
+		}
+		
+		//sort entries by hash, keeping file order among equal hashes so the first record wins
+		hashes = Arrays.copyOf(hashes, count);
+		offsets = Arrays.copyOf(offsets, count);
+		sort(hashes, offsets, 0, count);
+		return new RecordIndex(dataFile, dataFile.length(), modified, hashes, offsets);
+	}
+	
+	/**
+	 * Sorts the entries from up to to by hash and then by offset, swapping within the two arrays so
+	 * no object is allocated per entry. Offsets are distinct, so no two entries are equal.
+	 * @param hashes
+	 * @param offsets
+	 * @param from
+	 * @param to
+	 */
+	private static void sort(long hashes[], long offsets[], int from, int to) {
+		while(to - from > 16) {
+			int mid = (from + to) >>> 1;
+			long pivotHash = hashes[mid], pivotOffset = offsets[mid];
+			int i = from, j = to - 1;
+			while(i <= j) {
+				while(before(hashes[i], offsets[i], pivotHash, pivotOffset)) {
+					i++;
+				}
+				while(before(pivotHash, pivotOffset, hashes[j], offsets[j])) {
+					j--;
+				}
+				if(i <= j) {
+					swap(hashes, offsets, i++, j--);
+				}
+			}
+			//recurse into the smaller part so the stack stays logarithmic
+			if(j + 1 - from < to - i) {
+				sort(hashes, offsets, from, j + 1);
+				from = i;
+			}else {
+				sort(hashes, offsets, i, to);
+				to = j + 1;
+			}
+		}
+		for(int i = from + 1; i < to; i++) {
+			for(int j = i; j > from && before(hashes[j], offsets[j], hashes[j - 1], offsets[j - 1]); j--) {
+				swap(hashes, offsets, j, j - 1);
+			}
+		}
+	}
+	
+	private static boolean before(long hash, long offset, long otherHash, long otherOffset) {
+		return hash != otherHash ? hash < otherHash : offset < otherOffset;
+	}
+	
+	private static void swap(long hashes[], long offsets[], int i, int j) {
+		long hash = hashes[i], offset = offsets[i];
+		hashes[i] = hashes[j];
+		offsets[i] = offsets[j];
+		hashes[j] = hash;
+		offsets[j] = offset;
+	}
+	
+	/**
+	 * Reads an index written by save, checking that it is complete, sorted and within its source.
+	 * @param dataFile
+	 * @param indexFile
+	 * @return
+	 * @throws IOException if indexFile is not a complete, valid index
+	 */
+	private static RecordIndex load(File dataFile, File indexFile) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16))) {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("not a record index: " + indexFile);
+			}
+			long length = in.readLong();
+			long modified = in.readLong();
+			int count = in.readInt();
+			if(count < 0 || indexFile.length() != HEADER + 16L * count) {
+				throw new IOException("record index truncated: " + indexFile);
+			}
+			long hashes[] = new long[count], offsets[] = new long[count];
+			for(int i = 0; i < count; i++) {
+				hashes[i] = in.readLong();
+				offsets[i] = in.readLong();
+				if(offsets[i] < 0 || offsets[i] >= length || (i > 0 && before(hashes[i], offsets[i], hashes[i - 1], offsets[i - 1]))) {
+					throw new IOException("record index corrupt: " + indexFile);
+				}
+			}
+			return new RecordIndex(dataFile, length, modified, hashes, offsets);
+		}
+	}
+	
+	/**
+	 * Writes the index to indexFile. It is written to a file next to indexFile, forced to disk and
+	 * moved into place, so indexFile always holds a complete index.
+	 * @param indexFile
+	 * @throws IOException
+	 */
+	public void save(File indexFile) throws IOException {
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(sourceLength);
+			out.writeLong(sourceModified);
+			out.writeInt(hashes.length);
+			for(int i = 0; i < hashes.length; i++) {
+				out.writeLong(hashes[i]);
+				out.writeLong(offsets[i]);
+			}
+			out.flush();
+			file.getChannel().force(true);
+		}
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Returns the first record whose key equals key, trimmed, or null if there is none.
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public String find(String key) throws IOException {
+		key = key.trim();
+		long hash = HASH.hash(key);
+		int i = Arrays.binarySearch(hashes, hash);
+		if(i < 0) {
+			return null;
+		}
+		while(i > 0 && hashes[i - 1] == hash) {
+			i--;
+		}
+		for(; i < hashes.length && hashes[i] == hash; i++) {
+			String record = readLine(offsets[i]);
+			if(key.equals(keyOf(record))) {
+				return record.trim();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the key hashes in ascending order, records with equal hashes in file order.
+	 * @return
+	 */
+	long[] hashes() {
+		return hashes;
+	}
+	
+	/**
+	 * Returns the line offset of each entry of hashes().
+	 * @return
+	 */
+	long[] offsets() {
+		return offsets;
+	}
+	
+	/**
+	 * Returns true if the data file has been modified since it was indexed, so the offsets may no
+	 * longer point at its records.
+	 * @return
+	 */
+	public boolean isStale() {
+		return dataFile.length() != sourceLength || dataFile.lastModified() != sourceModified;
+	}
+	
+	/**
+	 * Returns the number of records in the index.
+	 * @return
+	 */
+	public int size() {
+		return hashes.length;
+	}
+	
+	/**
+	 * Releases the open data file.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if(channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+	
+	/**
+	 * Returns the data file channel, opening it on first use. Positioned reads on the channel are
+	 * safe from several threads.
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized FileChannel channel() throws IOException {
+		if(channel == null) {
+			channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+		}
+		return channel;
+	}
+	
+	/**
+	 * Reads the line starting at offset with positioned reads of the data file.
+	 * @param offset
+	 * @return
+	 * @throws IOException
+	 */
+	private String readLine(long offset) throws IOException {
+		return readLine(channel(), offset);
+	}
+	
+	/**
+	 * Reads the line starting at offset of channel, without its newline.
+	 * @param channel
+	 * @param offset
+	 * @return
+	 * @throws IOException
+	 */
+	static String readLine(FileChannel channel, long offset) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(256);
+		while(true) {
+			int n = channel.read(buf, offset + buf.position());
+			for(int i = 0; i < buf.position(); i++) {
+				if(buf.get(i) == '\n') {
+					return new String(buf.array(), 0, i, StandardCharsets.UTF_8);
+				}
+			}
+			if(n < 0) {
+				return new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+			}
+			if(!buf.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+				buf.flip();
+				bigger.put(buf);
+				buf = bigger;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the key of a record, its first four tokens, separated by what KeyBytes.isDelimiter
+	 * accepts, joined by single spaces, or null when the record has no fifth token and so holds no data.
+	 * @param record
+	 * @return
+	 */
+	static String keyOf(String record) {
+		StringBuilder key = new StringBuilder();
+		int tokens = 0, i = 0, n = record.length();
+		while(i < n) {
+			while(i < n && KeyBytes.isDelimiter(record.charAt(i))) {
+				i++;
+			}
+			if(i == n) {
+				break;
+			}
+			int start = i;
+			while(i < n && !KeyBytes.isDelimiter(record.charAt(i))) {
+				i++;
+			}
+			if(tokens == 4) {
+				return key.toString();
+			}
+			if(tokens > 0) {
+				key.append(' ');
+			}
+			key.append(record, start, i);
+			tokens++;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 
+ * Scalable Bloom filter (Almeida et al.) for key streams of unknown size. Keys go into the newest
+ * stage, a BloomFilterRan; once that stage has taken its capacity a new stage twice as large is
+ * started with half the false positive rate of the one before. The rates form a geometric series,
+ * so the false positive rate of the whole filter stays below twice the rate of the first stage no
+ * matter how many keys are added.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+public class ScalableBloomFilter implements BloomFilter {
+	
+	private static final int GROWTH = 2;
+	private static final double TIGHTENING = 0.5;
+	
+	private List<BloomFilter> stages = new ArrayList<BloomFilter>();
+	private HashStrategy strategy;
+	private long filterSize;
+	private int dataSize, stageSize, stageCapacity;
+	private double stageRate;
+	
+	/**
+	 * Creates a scalable Bloom filter whose first stage holds initialCapacity keys and whose overall
+	 * false positive rate stays below falsePositiveRate, hashing keys with Murmur3-128.
+	 * @param initialCapacity
+	 * @param falsePositiveRate
+	 */
+	public ScalableBloomFilter(int initialCapacity, double falsePositiveRate){
+		this(initialCapacity, falsePositiveRate, HashStrategy.MURMUR3);
+	}
+	
+	/**
+	 * Creates a scalable Bloom filter whose first stage holds initialCapacity keys and whose overall
+	 * false positive rate stays below falsePositiveRate.
+	 * @param initialCapacity
+	 * @param falsePositiveRate
+	 * @param strategy
+	 */
+	public ScalableBloomFilter(int initialCapacity, double falsePositiveRate, HashStrategy strategy){
+		if(initialCapacity <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("need initialCapacity > 0 and 0 < falsePositiveRate < 1");
+		}
+		this.strategy = strategy;
+		stageCapacity = initialCapacity;
+		stageRate = falsePositiveRate * (1 - TIGHTENING);
+		addStage();
+	}
+	
+	/**
+	 * Adds the string to the newest stage, starting a new stage first if the newest one is full.
+	 * This method should be case-insensitive.
+	 * @param s
+	 */
+	public void add(String s) {
+		if(s == null) {
+			return;
+		}
+		newestStage().add(s);
+		stageSize++;
+		dataSize++;
+	}
+	
+	/**
+	 * Adds the key held in len bytes of buf starting at off to the newest stage, starting a new stage
+	 * first if the newest one is full.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	public void add(byte buf[], int off, int len) {
+		newestStage().add(buf, off, len);
+		stageSize++;
+		dataSize++;
+	}
+	
+	/**
+	 * Returns true if s appears in any stage; otherwise returns false. Stages are checked newest
+	 * first. This method must also be case-insensitive.
+	 * @param s
+	 * @return
+	 */
+	public boolean appears(String s) {
+		if(s == null) {
+			return false;
+		}
+		for(int i = stages.size() - 1; i >= 0; i--) {
+			if(stages.get(i).appears(s)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Estimates the number of distinct keys added as the sum of the estimates of the stages.
+	 * @return
+	 */
+	public double estimateCardinality() {
+		double sum = 0;
+		for(BloomFilter stage : stages) {
+			sum += stage.estimateCardinality();
+		}
+		return sum;
+	}
+	
+	public boolean countsBits() {
+		return true;
+	}
+	
+	/**
+	 * Returns the number of set bits over all stages.
+	 * @return
+	 */
+	public long bitsSet() {
+		long set = 0;
+		for(BloomFilter stage : stages) {
+			set += stage.bitsSet();
+		}
+		return set;
+	}
+	
+	/**
+	 * Returns the false positive rate expected of the stages: a key that was not added appears if it
+	 * appears in any stage, 1 - (1 - p1)(1 - p2)...
+	 * @return
+	 */
+	public double expectedFalsePositiveRate() {
+		double none = 1;
+		for(BloomFilter stage : stages) {
+			none *= 1 - stage.expectedFalsePositiveRate();
+		}
+		return 1 - none;
+	}
+	
+	/**
+	 * Estimates the false positive rate from the bits set in each stage, combined as for
+	 * expectedFalsePositiveRate.
+	 * @return
+	 */
+	public double estimateFalsePositiveRate() {
+		double none = 1;
+		for(BloomFilter stage : stages) {
+			none *= 1 - stage.estimateFalsePositiveRate();
+		}
+		return 1 - none;
+	}
+	
+	/**
+	 * Returns true if the key held in len bytes of buf starting at off appears in any stage.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	public boolean appears(byte buf[], int off, int len) {
+		for(int i = stages.size() - 1; i >= 0; i--) {
+			if(stages.get(i).appears(buf, off, len)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the newest stage, first starting a new one if the newest is full.
+	 * @return
+	 */
+	private BloomFilter newestStage() {
+		if(stageSize >= stageCapacity) {
+			stageCapacity = (int) Math.min((long) stageCapacity * GROWTH, Integer.MAX_VALUE);
+			stageRate *= TIGHTENING;
+			addStage();
+		}
+		return stages.get(stages.size() - 1);
+	}
+	
+	/**
+	 * Starts a new, empty stage sized for stageCapacity keys at stageRate.
+	 */
+	private void addStage() {
+		BloomFilter stage = new BloomFilterRan(FilterSizing.forFalsePositiveRate(stageCapacity, stageRate), strategy);
+		stages.add(stage);
+		filterSize += stage.filterSize();
+		stageSize = 0;
+	}
+	
+	/**
+	 * Returns the number of stages created so far.
+	 * @return
+	 */
+	public int numStages() {
+		return stages.size();
+	}
+	
+	/**
+	 * Returns the total size of all stages.
+	 * @return
+	 */
+	public long filterSize() {
+		return filterSize;
+	}
+	
+	/**
+	 * Returns the number of elements added to the filter.
+	 * @return
+	 */
+	public int dataSize() {
+		return dataSize;
+	}
+
+	/**
+	 * Returns the number of hash function used by the newest stage, which uses the most.
+	 * @return
+	 */
+	public int numHashes() {
+		return stages.get(stages.size() - 1).numHashes();
+	}
+}
@@ -0,0 +1,226 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.function.BiConsumer;
+
+/**
+ * 
+ * Immutable run of records sorted by key, one level of an LsmDifferential. The run file holds one
+ * record per line. In memory the run keeps a Bloom filter over its keys and a sparse index with
+ * the key and offset of every 32nd line, so a lookup is a filter check and, if that passes, a
+ * binary search and one positioned read of at most 32 lines.
+ * 
+ * @author Brad Warren bawarren@iastate.edu
+ *
+ */
+class SortedRun {
+	
+	private static final int SPARSE_INTERVAL = 32;
+	
+	private File file;
+	private long length;
+	private BloomFilter filter;
+	private String sparseKeys[];
+	private long sparseOffsets[];
+	private FileChannel channel;
+	
+	private SortedRun(File file, long length, BloomFilter filter, List<String> sparseKeys, List<Long> sparseOffsets) {
+		this.file = file;
+		this.length = length;
+		this.filter = filter;
+		this.sparseKeys = sparseKeys.toArray(new String[0]);
+		this.sparseOffsets = new long[sparseOffsets.size()];
+		for(int i = 0; i < this.sparseOffsets.length; i++) {
+			this.sparseOffsets[i] = sparseOffsets.get(i);
+		}
+	}
+	
+	/**
+	 * Writes records, a map from key to record, to file as a new run. The run is written to file.tmp,
+	 * forced to disk and then moved to file, so a run file is always complete.
+	 * @param file
+	 * @param records
+	 * @param bitsPerElement
+	 * @return
+	 * @throws IOException
+	 */
+	static SortedRun write(File file, SortedMap<String,String> records, int bitsPerElement) throws IOException {
+		BloomFilter filter = new BloomFilterRan(Math.max(records.size(), 1), bitsPerElement, HashStrategy.MURMUR3);
+		List<String> sparseKeys = new ArrayList<String>();
+		List<Long> sparseOffsets = new ArrayList<Long>();
+		long offset = 0;
+		int count = 0;
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream tmpOut = new FileOutputStream(tmp);
+		try(OutputStream out = new BufferedOutputStream(tmpOut, 1 << 16)) {
+			for(Map.Entry<String,String> entry : records.entrySet()) {
+				if(count++ % SPARSE_INTERVAL == 0) {
+					sparseKeys.add(entry.getKey());
+					sparseOffsets.add(offset);
+				}
+				filter.add(entry.getKey());
+				byte line[] = (entry.getValue() + "\n").getBytes(StandardCharsets.UTF_8);
+				out.write(line);
+				offset += line.length;
+			}
+			out.flush();
+			tmpOut.getChannel().force(true);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		return new SortedRun(file, offset, filter, sparseKeys, sparseOffsets);
+	}
+	
+	/**
+	 * Reopens a run written by write, rebuilding its filter and sparse index with one pass.
+	 * @param file
+	 * @param bitsPerElement
+	 * @return
+	 * @throws IOException
+	 */
+	static SortedRun load(File file, int bitsPerElement) throws IOException {
+		List<String> keys = new ArrayList<String>();
+		List<Long> offsets = new ArrayList<Long>();
+		readLines(file, (offset, line) -> {
+			keys.add(RecordIndex.keyOf(line));
+			offsets.add(offset);
+		});
+		BloomFilter filter = new BloomFilterRan(Math.max(keys.size(), 1), bitsPerElement, HashStrategy.MURMUR3);
+		List<String> sparseKeys = new ArrayList<String>();
+		List<Long> sparseOffsets = new ArrayList<Long>();
+		for(int i = 0; i < keys.size(); i++) {
+			filter.add(keys.get(i));
+			if(i % SPARSE_INTERVAL == 0) {
+				sparseKeys.add(keys.get(i));
+				sparseOffsets.add(offsets.get(i));
+			}
+		}
+		return new SortedRun(file, file.length(), filter, sparseKeys, sparseOffsets);
+	}
+	
+	/**
+	 * Returns the record of key, which must already be trimmed, or null if this run has none.
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	String find(String key) throws IOException {
+		if(!filter.appears(key)) {
+			return null;
+		}
+		int i = Arrays.binarySearch(sparseKeys, key);
+		if(i < 0) {
+			i = -i - 2;
+			if(i < 0) {
+				return null;
+			}
+		}
+		long start = sparseOffsets[i];
+		long end = i + 1 < sparseOffsets.length ? sparseOffsets[i + 1] : length;
+		ByteBuffer buf = ByteBuffer.allocate((int) (end - start));
+		FileChannel channel = channel();
+		while(buf.hasRemaining()) {
+			if(channel.read(buf, start + buf.position()) < 0) {
+				break;
+			}
+		}
+		for(String line : new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8).split("\n")) {
+			if(key.equals(RecordIndex.keyOf(line))) {
+				return line;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Calls action with the key and record of every line, in key order.
+	 * @param action
+	 * @throws IOException
+	 */
+	void forEach(BiConsumer<String,String> action) throws IOException {
+		readLines(file, (offset, line) -> action.accept(RecordIndex.keyOf(line), line));
+	}
+	
+	/**
+	 * Returns the run file.
+	 * @return
+	 */
+	File file() {
+		return file;
+	}
+	
+	/**
+	 * Closes the run file. A later find reopens it.
+	 * @throws IOException
+	 */
+	synchronized void close() throws IOException {
+		if(channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+	
+	/**
+	 * Closes and deletes the run file.
+	 * @throws IOException
+	 */
+	synchronized void delete() throws IOException {
+		close();
+		file.delete();
+	}
+	
+	private synchronized FileChannel channel() throws IOException {
+		if(channel == null) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+		return channel;
+	}
+	
+	/**
+	 * Calls action with the offset and text of each non-empty line of file.
+	 * @param file
+	 * @param action
+	 * @throws IOException
+	 */
+	private static void readLines(File file, BiConsumer<Long,String> action) throws IOException {
+		byte line[] = new byte[256], block[] = new byte[1 << 16];
+		try(InputStream in = new FileInputStream(file)) {
+			long blockStart = 0, lineStart = 0;
+			int len = 0, n;
+			while((n = in.read(block)) > 0) {
+				for(int i = 0; i < n; i++) {
+					if(block[i] != '\n') {
+						if(len == line.length) {
+							line = Arrays.copyOf(line, len * 2);
+						}
+						line[len++] = block[i];
+						continue;
+					}
+					if(len > 0) {
+						action.accept(lineStart, new String(line, 0, len, StandardCharsets.UTF_8));
+					}
+					lineStart = blockStart + i + 1;
+					len = 0;
+				}
+				blockStart += n;
+			}
+			if(len > 0) {
+				action.accept(lineStart, new String(line, 0, len, StandardCharsets.UTF_8));
+			}
+		}
+	}
+}